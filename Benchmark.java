@@ -0,0 +1,94 @@
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+
+import rpal.AST;
+import rpal.BytecodeMachine;
+import rpal.CSEMachine;
+import rpal.LexicalAnalyzer;
+import rpal.NodeInterpreter;
+import rpal.Parser;
+
+
+/**
+ * Times whole runs (scanning, parsing, standardizing and evaluating) of RPAL programs inside
+ * one JVM, so that the numbers are not dominated by JVM startup. Program output is discarded.
+ *
+ * Usage: java Benchmark [-runs N] [-vm] [-jit] [-nodes] FILE...
+ */
+public class Benchmark {
+
+  private static boolean vmFlag;
+  private static int jitThreshold;
+  private static boolean nodesFlag;
+
+  public static void main(String[] args) throws InterruptedException{
+    int runs = 10;
+    int first = 0;
+    while(first<args.length && args[first].startsWith("-")){
+      if(args[first].equals("-runs"))
+        runs = Integer.parseInt(args[++first]);
+      else if(args[first].equals("-vm"))
+        vmFlag = true;
+      else if(args[first].equals("-nodes"))
+        nodesFlag = true;
+      else if(args[first].equals("-jit")){
+        vmFlag = true;
+        jitThreshold = 100;
+      }
+      first++;
+    }
+    final int numRuns = runs;
+    final String[] files = Arrays.copyOfRange(args, first, args.length);
+
+    //deep recursion in RPAL is deep recursion in the evaluator, so run on a thread with a large stack
+    Thread thread = new Thread(null, new Runnable(){
+      public void run(){
+        for(String file: files)
+          time(file, numRuns);
+      }
+    }, "benchmark", 1L<<30);
+    thread.start();
+    thread.join();
+  }
+
+  private static void time(String fileName, int runs){
+    PrintStream out = System.out;
+    long[] times = new long[runs];
+    for(int i = -runs; i < runs; i++){ //the first round only warms up the JIT
+      System.setOut(new PrintStream(new OutputStream(){
+        public void write(int b){
+        }
+      }));
+      long start = System.nanoTime();
+      try{
+        run(fileName);
+      }catch(IOException e){
+        System.setOut(out);
+        throw new RuntimeException("ERROR: Could not read from file: " + fileName);
+      }finally{
+        System.setOut(out);
+      }
+      if(i>=0)
+        times[i] = System.nanoTime()-start;
+    }
+    Arrays.sort(times);
+    System.out.printf("%-40s median %8.2f ms   min %8.2f ms%n", fileName, times[runs/2]/1e6, times[0]/1e6);
+  }
+
+  private static void run(String fileName) throws IOException{
+    Parser parser = new Parser(new LexicalAnalyzer(fileName));
+    parser.setStandardizeWhileParsing(true);
+    AST ast = parser.buildAST();
+    ast.standardize();
+    if(nodesFlag)
+      new NodeInterpreter(ast).evaluateProgram();
+    else if(vmFlag)
+      new BytecodeMachine(ast, jitThreshold, fileName).evaluateProgram();
+    else
+      new CSEMachine(ast).evaluateProgram();
+  }
+
+}
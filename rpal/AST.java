@@ -1,7 +1,7 @@
 package rpal;
 
 import java.util.ArrayDeque;
-import java.util.Stack;
+import java.util.Arrays;
 
 
 
@@ -12,9 +12,12 @@ import java.util.Stack;
 
 public class AST{
   private ASTNode root;
+  private ASTArena arena; //set while the tree is held in compact form
+  private int arenaRoot;
   private ArrayDeque<PendingDeltaBody> pendingDeltaBodyQueue;
   private boolean standardized;
   private Delta currentDelta;
+  private Scope currentScope; //of the delta whose body is being built
   private Delta rootDelta;
   private int deltaIndex;
 
@@ -22,18 +25,45 @@ public class AST{
     this.root = node;   
   }
 
+  /**
+   * A tree held in an {@link ASTArena}. It is printed and standardized in place, and createDeltas()
+   * builds the delta bodies straight from it.
+   */
+  public AST(ASTArena arena, int root){
+    this.arena = arena;
+    this.arenaRoot = root;
+  }
+
   
   public void printAST(){
-    preOrderPrint(root,"");
+    if(arena!=null)
+      arena.print(arenaRoot);
+    else
+      preOrderPrint(root,"");
   }
 
-  private void preOrderPrint(ASTNode node, String printPrefix){
-    if(node==null)
-      return;
-
-    printASTNodeDetails(node, printPrefix);
-    preOrderPrint(node.getChild(),printPrefix+".");
-    preOrderPrint(node.getSibling(),printPrefix);
+  /**
+   * Prints the tree in preorder with an explicit stack, so deep trees print as well.
+   */
+  private void preOrderPrint(ASTNode root, String printPrefix){
+    ArrayDeque<ASTNode> stack = new ArrayDeque<ASTNode>();
+    ArrayDeque<String> prefixes = new ArrayDeque<String>();
+    stack.push(root);
+    prefixes.push(printPrefix);
+    while(!stack.isEmpty()){
+      ASTNode node = stack.pop();
+      String prefix = prefixes.pop();
+      printASTNodeDetails(node, prefix);
+      //push the sibling first so the children are printed before it
+      if(node.getSibling()!=null){
+        stack.push(node.getSibling());
+        prefixes.push(prefix);
+      }
+      if(node.getChild()!=null){
+        stack.push(node.getChild());
+        prefixes.push(prefix+".");
+      }
+    }
   }
 
   private void printASTNodeDetails(ASTNode node, String printPrefix){
@@ -49,21 +79,50 @@ public class AST{
 
   
   public void standardize(){
-    standardize(root);
+    if(standardized) //e.g. already standardized while parsing
+      return;
+    if(arena!=null)
+      arena.standardize(arenaRoot);
+    else
+      standardize(root);
     standardized = true;
   }
 
   
-  private void standardize(ASTNode node){
-    //standardize the children first
-    if(node.getChild()!=null){
-      ASTNode childNode = node.getChild();
-      while(childNode!=null){
-        standardize(childNode);
-        childNode = childNode.getSibling();
-      }
+  /**
+   * Standardizes every node after all of its descendants without recursing: the nodes of the
+   * original tree are collected in preorder on an explicit stack and then standardized back to
+   * front. The rules only rearrange a node's own subtree, so this is the same as a postorder
+   * walk, and the whole pass is linear in the number of nodes.
+   */
+  private void standardize(ASTNode root){
+    ASTNode[] preOrder = new ASTNode[16];
+    int count = 0;
+    ArrayDeque<ASTNode> stack = new ArrayDeque<ASTNode>();
+    stack.push(root);
+    while(!stack.isEmpty()){
+      ASTNode node = stack.pop();
+      if(count==preOrder.length)
+        preOrder = Arrays.copyOf(preOrder, count*2);
+      preOrder[count++] = node;
+      //a node's siblings are only reachable from the root through its parent
+      if(node!=root && node.getSibling()!=null)
+        stack.push(node.getSibling());
+      if(node.getChild()!=null)
+        stack.push(node.getChild());
+    }
+
+    for(int i = count-1; i >= 0; i--){
+      standardizeNode(preOrder[i]);
+      preOrder[i] = null;
     }
+  }
 
+  /**
+   * Standardizes a node whose children are all standardized already. The parser calls this
+   * for every node it builds when it standardizes while parsing.
+   */
+  static void standardizeNode(ASTNode node){
     //all children standardized. now standardize this node
     switch(node.getType()){
       
@@ -96,7 +155,7 @@ public class AST{
         equalNode.setSibling(node.getChild());
         node.setChild(equalNode);
         node.setType(ASTNodeType.LET);
-        standardize(node);
+        standardizeNode(node);
         break;
       
       
@@ -170,11 +229,27 @@ public class AST{
         commaNode.setType(ASTNodeType.COMMA);
         ASTNode tauNode = new ASTNode();
         tauNode.setType(ASTNodeType.TAU);
+        ASTNode lastX = null, lastE = null;
         ASTNode childNode = node.getChild();
         while(childNode!=null){
-          populateCommaAndTauNode(childNode, commaNode, tauNode);
+          if(childNode.getType()!=ASTNodeType.EQUAL)
+            throw new RuntimeException("SIMULTDEF: one of the children is not EQUAL"); //safety
+          ASTNode x = childNode.getChild();
+          e = x.getSibling();
+          if(lastX==null){
+            commaNode.setChild(x);
+            tauNode.setChild(e);
+          }
+          else{
+            lastX.setSibling(x);
+            lastE.setSibling(e);
+          }
+          lastX = x;
+          lastE = e;
           childNode = childNode.getSibling();
         }
+        lastX.setSibling(null);
+        lastE.setSibling(null);
         commaNode.setSibling(tauNode);
         node.setChild(commaNode);
         node.setType(ASTNodeType.EQUAL);
@@ -209,6 +284,7 @@ public class AST{
         xWithSiblingGamma.setSibling(gammaNode);
         xWithSiblingGamma.setType(x.getType());
         xWithSiblingGamma.setValue(x.getValue());
+        xWithSiblingGamma.setSymbol(x.getSymbol());
         node.setChild(xWithSiblingGamma);
         node.setType(ASTNodeType.EQUAL);
         break;
@@ -225,91 +301,92 @@ public class AST{
     }
   }
 
-  private void populateCommaAndTauNode(ASTNode equalNode, ASTNode commaNode, ASTNode tauNode){
-    if(equalNode.getType()!=ASTNodeType.EQUAL)
-      throw new RuntimeException("SIMULTDEF: one of the children is not EQUAL"); //safety
-    ASTNode x = equalNode.getChild();
-    ASTNode e = x.getSibling();
-    setChild(commaNode, x);
-    setChild(tauNode, e);
-  }
-
   /**
-   * Either creates a new child of the parent or attaches the child node passed in
-   * as the last sibling of the parent's existing children 
-   
+   * Turns the chain V1 -> V2 -> ... -> Vn -> E into LAMBDA(V1, LAMBDA(V2, ... LAMBDA(Vn, E))),
+   * returning the outermost LAMBDA (or E itself if there are no variables).
    */
-  private void setChild(ASTNode parentNode, ASTNode childNode){
-    if(parentNode.getChild()==null)
-      parentNode.setChild(childNode);
-    else{
-      ASTNode lastSibling = parentNode.getChild();
-      while(lastSibling.getSibling()!=null)
-        lastSibling = lastSibling.getSibling();
-      lastSibling.setSibling(childNode);
-    }
-    childNode.setSibling(null);
-  }
-
-  private ASTNode constructLambdaChain(ASTNode node){
+  private static ASTNode constructLambdaChain(ASTNode node){
     if(node.getSibling()==null)
       return node;
     
-    ASTNode lambdaNode = new ASTNode();
-    lambdaNode.setType(ASTNodeType.LAMBDA);
-    lambdaNode.setChild(node);
-    if(node.getSibling().getSibling()!=null)
-      node.setSibling(constructLambdaChain(node.getSibling()));
-    return lambdaNode;
+    ASTNode firstLambda = new ASTNode();
+    firstLambda.setType(ASTNodeType.LAMBDA);
+    firstLambda.setChild(node);
+    while(node.getSibling().getSibling()!=null){
+      ASTNode next = node.getSibling();
+      ASTNode lambdaNode = new ASTNode();
+      lambdaNode.setType(ASTNodeType.LAMBDA);
+      lambdaNode.setChild(next);
+      node.setSibling(lambdaNode);
+      node = next;
+    }
+    return firstLambda;
   }
 
   
+  /**
+   * Builds the deltas of the standardized tree and returns the one that evaluates the program. A
+   * tree held in an arena is read from there, without making ASTNodes of any but the nodes that
+   * end up in the delta bodies.
+   */
   public Delta createDeltas(){
     pendingDeltaBodyQueue = new ArrayDeque<PendingDeltaBody>();
     deltaIndex = 0;
-    currentDelta = createDelta(root);
+    currentScope = null;
+    if(arena!=null)
+      rootDelta = createDelta(null, arenaRoot);
+    else
+      rootDelta = createDelta(root, ASTArena.NONE);
     processPendingDeltaStack();
     return rootDelta;
   }
 
-  private Delta createDelta(ASTNode startBodyNode){
+  private Delta createDelta(ASTNode startBodyNode, int arenaStartBodyNode){
     //we'll create this delta's body later
+    Delta d = new Delta();
     PendingDeltaBody pendingDelta = new PendingDeltaBody();
     pendingDelta.startNode = startBodyNode;
-    pendingDelta.body = new Stack<ASTNode>();
+    pendingDelta.arenaStartNode = arenaStartBodyNode;
+    pendingDelta.delta = d;
+    pendingDelta.scope = new Scope(d, currentScope);
     pendingDeltaBodyQueue.add(pendingDelta);
     
-    Delta d = new Delta();
-    d.setBody(pendingDelta.body);
     d.setIndex(deltaIndex++);
     currentDelta = d;
     
-    if(startBodyNode==root)
-      rootDelta = currentDelta;
-    
     return d;
   }
 
   private void processPendingDeltaStack(){
     while(!pendingDeltaBodyQueue.isEmpty()){
       PendingDeltaBody pendingDeltaBody = pendingDeltaBodyQueue.pop();
-      buildDeltaBody(pendingDeltaBody.startNode, pendingDeltaBody.body);
+      currentScope = pendingDeltaBody.scope;
+      NodeStack body = new NodeStack();
+      if(pendingDeltaBody.startNode!=null)
+        buildDeltaBody(pendingDeltaBody.startNode, body);
+      else
+        buildDeltaBody(pendingDeltaBody.arenaStartNode, body);
+      NodeStack code = new NodeStack(body.size()+8);
+      linearize(body, code);
+      pendingDeltaBody.delta.setBody(code.toArray());
     }
   }
   
-  private void buildDeltaBody(ASTNode node, Stack<ASTNode> body){
+  private void buildDeltaBody(ASTNode node, NodeStack body){
     if(node.getType()==ASTNodeType.LAMBDA){ //create a new delta
-      Delta d = createDelta(node.getChild().getSibling()); //the new delta's body starts at the right child of the lambda
+      Delta d = createDelta(node.getChild().getSibling(), ASTArena.NONE); //the new delta's body starts at the right child of the lambda
+      //lambdas made by the standardizer have no line of their own
+      d.setSourceLineNumber(node.getSourceLineNumber()!=0? node.getSourceLineNumber() : node.getChild().getSibling().getSourceLineNumber());
       if(node.getChild().getType()==ASTNodeType.COMMA){ //the left child of the lambda is the bound variable
         ASTNode commaNode = node.getChild();
         ASTNode childNode = commaNode.getChild();
         while(childNode!=null){
-          d.addBoundVars(childNode.getValue());
+          d.addBoundVars(childNode.getSymbol());
           childNode = childNode.getSibling();
         }
       }
       else
-        d.addBoundVars(node.getChild().getValue());
+        d.addBoundVars(node.getChild().getSymbol());
       body.push(d); //add this new delta to the existing delta's body
       return;
     }
@@ -320,10 +397,10 @@ public class AST{
       ASTNode elseNode = thenNode.getSibling();
       
       
-      Beta betaNode = new Beta();
+      PendingBeta betaNode = new PendingBeta();
       
-      buildDeltaBody(thenNode, betaNode.getThenBody());
-      buildDeltaBody(elseNode, betaNode.getElseBody());
+      buildDeltaBody(thenNode, betaNode.thenBody);
+      buildDeltaBody(elseNode, betaNode.elseBody);
       
       body.push(betaNode);
       
@@ -333,7 +410,12 @@ public class AST{
     }
     
     //preOrder walk
-    body.push(node);
+    if(node.getType()==ASTNodeType.IDENTIFIER)
+      body.push(resolveIdentifier(node));
+    else if(node.getType()==ASTNodeType.TAU)
+      body.push(new Tau(getNumChildren(node), node.getSourceLineNumber()));
+    else
+      body.push(toRuntimeConstant(node));
     ASTNode childNode = node.getChild();
     while(childNode!=null){
       buildDeltaBody(childNode, body);
@@ -341,14 +423,226 @@ public class AST{
     }
   }
 
+  private static int getNumChildren(ASTNode node){
+    int numChildren = 0;
+    for(ASTNode childNode = node.getChild(); childNode!=null; childNode = childNode.getSibling())
+      numChildren++;
+    return numChildren;
+  }
+
+  /**
+   * buildDeltaBody() for a node of the arena. Only the leaves and operators that go into the body
+   * are made into ASTNodes.
+   */
+  private void buildDeltaBody(int node, NodeStack body){
+    ASTNodeType type = arena.getType(node);
+    if(type==ASTNodeType.LAMBDA){ //create a new delta
+      int boundVarNode = arena.getChild(node);
+      int startBodyNode = arena.getSibling(boundVarNode);
+      Delta d = createDelta(null, startBodyNode); //the new delta's body starts at the right child of the lambda
+      //lambdas made by the standardizer have no line of their own
+      d.setSourceLineNumber(arena.getSourceLineNumber(node)!=0? arena.getSourceLineNumber(node) : arena.getSourceLineNumber(startBodyNode));
+      if(arena.getType(boundVarNode)==ASTNodeType.COMMA){ //the left child of the lambda is the bound variable
+        for(int childNode = arena.getChild(boundVarNode); childNode!=ASTArena.NONE; childNode = arena.getSibling(childNode))
+          d.addBoundVars(arena.getValue(childNode));
+      }
+      else
+        d.addBoundVars(arena.getValue(boundVarNode));
+      body.push(d); //add this new delta to the existing delta's body
+      return;
+    }
+    else if(type==ASTNodeType.CONDITIONAL){
+      int conditionNode = arena.getChild(node);
+      int thenNode = arena.getSibling(conditionNode);
+      int elseNode = arena.getSibling(thenNode);
+      
+      PendingBeta betaNode = new PendingBeta();
+      
+      buildDeltaBody(thenNode, betaNode.thenBody);
+      buildDeltaBody(elseNode, betaNode.elseBody);
+      
+      body.push(betaNode);
+      
+      buildDeltaBody(conditionNode, body);
+      
+      return;
+    }
+    
+    //preOrder walk
+    if(type==ASTNodeType.TAU){
+      int numChildren = 0;
+      for(int childNode = arena.getChild(node); childNode!=ASTArena.NONE; childNode = arena.getSibling(childNode))
+        numChildren++;
+      body.push(new Tau(numChildren, arena.getSourceLineNumber(node)));
+    }
+    else if(type==ASTNodeType.IDENTIFIER)
+      body.push(resolveIdentifier(arena.createASTNode(node)));
+    else
+      body.push(toRuntimeConstant(arena.createASTNode(node)));
+    for(int childNode = arena.getChild(node); childNode!=ASTArena.NONE; childNode = arena.getSibling(childNode))
+      buildDeltaBody(childNode, body);
+  }
+
+  /**
+   * Appends the instructions of a body built as a control stack to code, in the order they are
+   * executed, i.e., from the top of the stack down. A conditional becomes a Beta that jumps to the
+   * else part if the condition is false, followed by the then part and a Jump past the else part.
+   */
+  private static void linearize(NodeStack body, NodeStack code){
+    for(int i = body.size()-1; i >= 0; i--){
+      ASTNode node = body.get(i);
+      if(node.getType()!=ASTNodeType.BETA){
+        code.push(node);
+        continue;
+      }
+      PendingBeta pendingBeta = (PendingBeta)node;
+      Beta betaNode = new Beta();
+      Jump jumpNode = new Jump();
+      code.push(betaNode);
+      linearize(pendingBeta.thenBody, code);
+      code.push(jumpNode);
+      betaNode.setElseAddress(code.size());
+      linearize(pendingBeta.elseBody, code);
+      jumpNode.setAddress(code.size());
+    }
+  }
+
+  /**
+   * Resolves a reference to a bound variable (see {@link Variable}). A variable bound by an
+   * enclosing delta is captured by the current one, and so by every delta in between, so that
+   * each closure holds the values of its free variables. Any other identifier is left as it is,
+   * to be evaluated as a builtin function or reported as undeclared.
+   */
+  private ASTNode resolveIdentifier(ASTNode node){
+    return resolveIdentifier(node, currentScope);
+  }
+
+  private ASTNode resolveIdentifier(ASTNode node, Scope scope){
+    return resolveIdentifier(node, scope, scope, 0);
+  }
+
+  /**
+   * Resolves a reference in scope to the nearest binding of the name in from or the scopes it
+   * is nested in, where from is depth scopes up from scope. A variable bound to an element of a
+   * tuple may have no value, if the tuple is too short; it then refers to the next binding out,
+   * which is resolved too, as its outer variable.
+   */
+  private ASTNode resolveIdentifier(ASTNode node, Scope scope, Scope from, int depth){
+    int slot = -1;
+    Scope bindingScope = from;
+    for(; bindingScope!=null; bindingScope = bindingScope.parent, depth++){
+      slot = bindingScope.slotOf(node.getSymbol());
+      if(slot>=0)
+        break;
+    }
+    if(slot<0)
+      return node;
+    ASTNode outer = null;
+    if(bindingScope.delta.getBoundVars().length>1)
+      outer = resolveIdentifier(node, scope, bindingScope.parent, depth+1);
+    Variable outerVariable = outer instanceof Variable? (Variable)outer : null;
+    if(depth==0)
+      return new Variable(node, false, slot, 0, slot, outerVariable);
+    
+    int capture = scope.delta.findCapture(node.getSymbol());
+    if(capture<0) //how the delta's closures find the value where they are created
+      capture = scope.delta.addCapture((Variable)resolveIdentifier(node, scope.parent));
+    return new Variable(node, true, capture, depth, slot, outerVariable);
+  }
+
+  /**
+   * Integer, string, truth value and dummy literals are put in the delta bodies as the runtime values
+   * the CSE machine pushes for them, so they are converted once rather than on every use.
+   */
+  private static ASTNode toRuntimeConstant(ASTNode node){
+    switch(node.getType()){
+      case INTEGER:
+        IntegerValue integerValue = new IntegerValue(Integer.parseInt(node.getValue()));
+        integerValue.setSourceLineNumber(node.getSourceLineNumber());
+        return integerValue;
+      case STRING:
+        StringValue stringValue = new StringValue(node.getValue());
+        stringValue.setSourceLineNumber(node.getSourceLineNumber());
+        return stringValue;
+      case TRUE:
+        return TruthValue.TRUE;
+      case FALSE:
+        return TruthValue.FALSE;
+      case DUMMY:
+        return DummyValue.DUMMY;
+      default:
+        return node;
+    }
+  }
+
   private class PendingDeltaBody{
-    Stack<ASTNode> body;
-    ASTNode startNode;
+    Delta delta;
+    ASTNode startNode; //null if the tree is held in the arena
+    int arenaStartNode;
+    Scope scope;
+  }
+
+  /**
+   * The variables bound by a delta, and those of the deltas it is nested in.
+   */
+  private static class Scope{
+    final Delta delta;
+    final Scope parent;
+
+    Scope(Delta delta, Scope parent){
+      this.delta = delta;
+      this.parent = parent;
+    }
+
+    //if a lambda binds a name twice, the last one wins
+    int slotOf(int symbol){
+      int[] boundVars = delta.getBoundVars();
+      for(int i = boundVars.length-1; i >= 0; i--){
+        if(boundVars[i]==symbol)
+          return i;
+      }
+      return -1;
+    }
+  }
+
+  /**
+   * A conditional while its delta body is being built; see linearize().
+   */
+  private static class PendingBeta extends ASTNode{
+    NodeStack thenBody = new NodeStack();
+    NodeStack elseBody = new NodeStack();
+
+    PendingBeta(){
+      setType(ASTNodeType.BETA);
+    }
   }
 
   public boolean isStandardized(){
     return standardized;
   }
+
+  void setStandardized(boolean standardized){
+    this.standardized = standardized;
+  }
+
+  /**
+   * Moves the tree into an {@link ASTArena} if it is not held in one already.
+   */
+  void compact(){
+    if(arena!=null)
+      return;
+    arena = new ASTArena(1024);
+    arenaRoot = arena.addTree(root);
+    root = null;
+  }
+
+  ASTArena getArena(){
+    return arena;
+  }
+
+  int getArenaRoot(){
+    return arenaRoot;
+  }
 }
 
 
@@ -358,6 +652,7 @@ public class AST{
  class ASTNode{
   private ASTNodeType type;
   private String value;
+  private int symbol; //SymbolTable id of an identifier; SymbolTable.NONE for everything else
   private ASTNode child;
   private ASTNode sibling;
   private int sourceLineNumber;
@@ -398,8 +693,12 @@ public class AST{
     this.value = value;
   }
 
-  public ASTNode accept(NodeCopier nodeCopier){
-    return nodeCopier.copy(this);
+  public int getSymbol(){
+    return symbol;
+  }
+
+  public void setSymbol(int symbol){
+    this.symbol = symbol;
   }
 
   public int getSourceLineNumber(){
@@ -474,7 +773,9 @@ enum ASTNodeType{
   BETA(""),
   DELTA(""),
   ETA(""),
-  TUPLE("");
+  TUPLE(""),
+  JUMP(""),
+  VARIABLE("");
   
   private String printName; 
   
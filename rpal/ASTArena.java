@@ -0,0 +1,409 @@
+package rpal;
+import java.util.Arrays;
+
+/**
+ * Compact store for an abstract syntax tree. Nodes are plain int indices into parallel arrays
+ * (struct-of-arrays) holding the node type, the SymbolTable id of its value, its first child,
+ * its next sibling and its source line number. The arrays grow as needed and one arena holds
+ * all the nodes of one compilation, so a tree of millions of nodes costs a handful of arrays
+ * rather than millions of objects.
+ *
+ * The arena can print and standardize its tree. AST.createDeltas() builds the delta bodies
+ * straight from it, making an ASTNode (see {@link #createASTNode(int)}) only of each node that
+ * becomes an instruction.
+ */
+class ASTArena{
+  public static final int NONE = -1;
+
+  private static final ASTNodeType[] nodeTypes = ASTNodeType.values();
+
+  private int[] types;
+  private int[] values; //SymbolTable id of the identifier, integer or string; SymbolTable.NONE otherwise
+  private int[] firstChildren;
+  private int[] nextSiblings;
+  private int[] sourceLineNumbers;
+  private int size;
+
+  public ASTArena(int initialCapacity){
+    types = new int[initialCapacity];
+    values = new int[initialCapacity];
+    firstChildren = new int[initialCapacity];
+    nextSiblings = new int[initialCapacity];
+    sourceLineNumbers = new int[initialCapacity];
+  }
+
+  public int newNode(ASTNodeType type, int value, int sourceLineNumber){
+    if(size==types.length){
+      int capacity = size*2;
+      types = Arrays.copyOf(types, capacity);
+      values = Arrays.copyOf(values, capacity);
+      firstChildren = Arrays.copyOf(firstChildren, capacity);
+      nextSiblings = Arrays.copyOf(nextSiblings, capacity);
+      sourceLineNumbers = Arrays.copyOf(sourceLineNumbers, capacity);
+    }
+    types[size] = type.ordinal();
+    values[size] = value;
+    firstChildren[size] = NONE;
+    nextSiblings[size] = NONE;
+    sourceLineNumbers[size] = sourceLineNumber;
+    return size++;
+  }
+
+  private int newNode(ASTNodeType type){
+    return newNode(type, SymbolTable.NONE, 0);
+  }
+
+  public int size(){
+    return size;
+  }
+
+  public ASTNodeType getType(int node){
+    return nodeTypes[types[node]];
+  }
+
+  public void setType(int node, ASTNodeType type){
+    types[node] = type.ordinal();
+  }
+
+  public int getValue(int node){
+    return values[node];
+  }
+
+  public int getChild(int node){
+    return firstChildren[node];
+  }
+
+  public void setChild(int node, int child){
+    firstChildren[node] = child;
+  }
+
+  public int getSibling(int node){
+    return nextSiblings[node];
+  }
+
+  public void setSibling(int node, int sibling){
+    nextSiblings[node] = sibling;
+  }
+
+  public int getSourceLineNumber(int node){
+    return sourceLineNumbers[node];
+  }
+
+  public void setSourceLineNumber(int node, int sourceLineNumber){
+    sourceLineNumbers[node] = sourceLineNumber;
+  }
+
+  /**
+   * Prints the tree rooted at the given node in the same format as AST.printAST().
+   */
+  public void print(int root){
+    int[] stack = new int[16];
+    int[] depths = new int[16];
+    int top = 0;
+    String[] prefixes = new String[]{""};
+    stack[top] = root;
+    depths[top++] = 0;
+    while(top>0){
+      int node = stack[--top];
+      int depth = depths[top];
+      if(depth>=prefixes.length){
+        prefixes = Arrays.copyOf(prefixes, Math.max(depth+1, prefixes.length*2));
+        for(int i = 1; i < prefixes.length; i++)
+          if(prefixes[i]==null)
+            prefixes[i] = prefixes[i-1]+".";
+      }
+      printNodeDetails(node, prefixes[depth]);
+
+      //push the siblings first so the children are printed before them
+      if(top+2>stack.length){
+        stack = Arrays.copyOf(stack, stack.length*2);
+        depths = Arrays.copyOf(depths, depths.length*2);
+      }
+      if(getSibling(node)!=NONE){
+        stack[top] = getSibling(node);
+        depths[top++] = depth;
+      }
+      if(getChild(node)!=NONE){
+        stack[top] = getChild(node);
+        depths[top++] = depth+1;
+      }
+    }
+  }
+
+  private void printNodeDetails(int node, String printPrefix){
+    ASTNodeType type = getType(node);
+    if(type==ASTNodeType.IDENTIFIER || type==ASTNodeType.INTEGER || type==ASTNodeType.STRING)
+      System.out.printf(printPrefix+type.getPrintName()+"\n", SymbolTable.getName(getValue(node)));
+    else
+      System.out.println(printPrefix+type.getPrintName());
+  }
+
+  /**
+   * Standardizes the tree rooted at the given node, applying the same transformations as
+   * AST.standardize(). Every node is standardized after all of its descendants: the nodes of
+   * the original tree are collected in preorder and then processed back to front.
+   */
+  public void standardize(int root){
+    int[] preOrder = new int[16];
+    int count = 0;
+    int[] stack = new int[16];
+    int top = 0;
+    stack[top++] = root;
+    while(top>0){
+      int node = stack[--top];
+      if(count==preOrder.length)
+        preOrder = Arrays.copyOf(preOrder, count*2);
+      preOrder[count++] = node;
+      if(top+2>stack.length)
+        stack = Arrays.copyOf(stack, stack.length*2);
+      //a node's siblings are only reachable from the root through its parent
+      if(node!=root && getSibling(node)!=NONE)
+        stack[top++] = getSibling(node);
+      if(getChild(node)!=NONE)
+        stack[top++] = getChild(node);
+    }
+
+    for(int i = count-1; i >= 0; i--)
+      standardizeNode(preOrder[i]);
+  }
+
+  /**
+   * Standardizes a node whose children are all standardized already.
+   */
+  void standardizeNode(int node){
+    switch(getType(node)){
+      case LET:
+        //       LET              GAMMA
+        //     /     \           /     \
+        //    EQUAL   P   ->   LAMBDA   E
+        //   /   \             /    \
+        //  X     E           X      P
+        int equalNode = getChild(node);
+        if(getType(equalNode)!=ASTNodeType.EQUAL)
+          throw new RuntimeException("LET/WHERE: left child is not EQUAL"); //safety
+        int e = getSibling(getChild(equalNode));
+        setSibling(getChild(equalNode), getSibling(equalNode));
+        setSibling(equalNode, e);
+        setType(equalNode, ASTNodeType.LAMBDA);
+        setType(node, ASTNodeType.GAMMA);
+        break;
+
+      case WHERE:
+        //make this is a LET node and standardize that
+        //       WHERE               LET
+        //       /   \             /     \
+        //      P    EQUAL   ->  EQUAL   P
+        //           /   \       /   \
+        //          X     E     X     E
+        int p = getChild(node);
+        equalNode = getSibling(p);
+        setSibling(p, NONE);
+        setSibling(equalNode, p);
+        setChild(node, equalNode);
+        setType(node, ASTNodeType.LET);
+        standardizeNode(node);
+        break;
+
+      case FCNFORM:
+        //       FCN_FORM                EQUAL
+        //       /   |   \              /    \
+        //      P    V+   E    ->      P     +LAMBDA
+        //                                    /     \
+        //                                    V     .E
+        setSibling(getChild(node), constructLambdaChain(getSibling(getChild(node))));
+        setType(node, ASTNodeType.EQUAL);
+        break;
+
+      case AT:
+        //         AT              GAMMA
+        //       / | \    ->       /    \
+        //      E1 N E2          GAMMA   E2
+        //                       /    \
+        //                      N     E1
+        int e1 = getChild(node);
+        int n = getSibling(e1);
+        int e2 = getSibling(n);
+        int gammaNode = newNode(ASTNodeType.GAMMA);
+        setChild(gammaNode, n);
+        setSibling(n, e1);
+        setSibling(e1, NONE);
+        setSibling(gammaNode, e2);
+        setChild(node, gammaNode);
+        setType(node, ASTNodeType.GAMMA);
+        break;
+
+      case WITHIN:
+        //           WITHIN                  EQUAL
+        //          /      \                /     \
+        //        EQUAL   EQUAL    ->      X2     GAMMA
+        //       /    \   /    \                  /    \
+        //      X1    E1 X2    E2               LAMBDA  E1
+        //                                      /    \
+        //                                     X1    E2
+        if(getType(getChild(node))!=ASTNodeType.EQUAL || getType(getSibling(getChild(node)))!=ASTNodeType.EQUAL)
+          throw new RuntimeException("WITHIN: one of the children is not EQUAL"); //safety
+        int x1 = getChild(getChild(node));
+        e1 = getSibling(x1);
+        int x2 = getChild(getSibling(getChild(node)));
+        e2 = getSibling(x2);
+        int lambdaNode = newNode(ASTNodeType.LAMBDA);
+        setSibling(x1, e2);
+        setChild(lambdaNode, x1);
+        setSibling(lambdaNode, e1);
+        gammaNode = newNode(ASTNodeType.GAMMA);
+        setChild(gammaNode, lambdaNode);
+        setSibling(x2, gammaNode);
+        setChild(node, x2);
+        setType(node, ASTNodeType.EQUAL);
+        break;
+
+      case SIMULTDEF:
+        //         SIMULTDEF            EQUAL
+        //             |               /     \
+        //           EQUAL++  ->     COMMA   TAU
+        //           /   \             |      |
+        //          X     E           X++    E++
+        int commaNode = newNode(ASTNodeType.COMMA);
+        int tauNode = newNode(ASTNodeType.TAU);
+        int lastX = NONE, lastE = NONE;
+        int childNode = getChild(node);
+        while(childNode!=NONE){
+          if(getType(childNode)!=ASTNodeType.EQUAL)
+            throw new RuntimeException("SIMULTDEF: one of the children is not EQUAL"); //safety
+          int x = getChild(childNode);
+          e = getSibling(x);
+          if(lastX==NONE){
+            setChild(commaNode, x);
+            setChild(tauNode, e);
+          }
+          else{
+            setSibling(lastX, x);
+            setSibling(lastE, e);
+          }
+          lastX = x;
+          lastE = e;
+          childNode = getSibling(childNode);
+        }
+        setSibling(lastX, NONE);
+        setSibling(lastE, NONE);
+        setSibling(commaNode, tauNode);
+        setChild(node, commaNode);
+        setType(node, ASTNodeType.EQUAL);
+        break;
+
+      case REC:
+        //        REC                 EQUAL
+        //         |                 /     \
+        //       EQUAL     ->       X     GAMMA
+        //      /     \                   /    \
+        //     X       E                YSTAR  LAMBDA
+        //                                     /     \
+        //                                    X       E
+        childNode = getChild(node);
+        if(getType(childNode)!=ASTNodeType.EQUAL)
+          throw new RuntimeException("REC: child is not EQUAL"); //safety
+        int x = getChild(childNode);
+        lambdaNode = newNode(ASTNodeType.LAMBDA);
+        setChild(lambdaNode, x); //x is already attached to e
+        int yStarNode = newNode(ASTNodeType.YSTAR);
+        setSibling(yStarNode, lambdaNode);
+        gammaNode = newNode(ASTNodeType.GAMMA);
+        setChild(gammaNode, yStarNode);
+        int xWithSiblingGamma = newNode(getType(x), getValue(x), 0); //same as x except the sibling is not e but gamma
+        setChild(xWithSiblingGamma, getChild(x));
+        setSibling(xWithSiblingGamma, gammaNode);
+        setChild(node, xWithSiblingGamma);
+        setType(node, ASTNodeType.EQUAL);
+        break;
+
+      case LAMBDA:
+        //     LAMBDA        LAMBDA
+        //      /   \   ->   /    \
+        //     V++   E      V     .E
+        setSibling(getChild(node), constructLambdaChain(getSibling(getChild(node))));
+        break;
+
+      default:
+        break;
+    }
+  }
+
+  /**
+   * Turns the chain V1 -> V2 -> ... -> Vn -> E into LAMBDA(V1, LAMBDA(V2, ... LAMBDA(Vn, E))),
+   * returning the outermost LAMBDA (or E itself if there are no variables).
+   */
+  private int constructLambdaChain(int node){
+    if(getSibling(node)==NONE)
+      return node;
+
+    int firstLambda = newNode(ASTNodeType.LAMBDA);
+    setChild(firstLambda, node);
+    while(getSibling(getSibling(node))!=NONE){
+      int next = getSibling(node);
+      int lambdaNode = newNode(ASTNodeType.LAMBDA);
+      setChild(lambdaNode, next);
+      setSibling(node, lambdaNode);
+      node = next;
+    }
+    return firstLambda;
+  }
+
+  /**
+   * Adds a copy of the ASTNode tree rooted at the given node and returns the copy's root.
+   */
+  public int addTree(ASTNode rootNode){
+    int root = createArenaNode(rootNode);
+    //pairs of ASTNode and the arena node created for it, whose child and sibling still have to be linked
+    ASTNode[] stack = new ASTNode[16];
+    int[] created = new int[16];
+    int top = 0;
+    stack[top] = rootNode;
+    created[top++] = root;
+    while(top>0){
+      ASTNode astNode = stack[--top];
+      stack[top] = null;
+      int node = created[top];
+      if(top+2>stack.length){
+        stack = Arrays.copyOf(stack, stack.length*2);
+        created = Arrays.copyOf(created, created.length*2);
+      }
+      if(astNode!=rootNode && astNode.getSibling()!=null){
+        int sibling = createArenaNode(astNode.getSibling());
+        setSibling(node, sibling);
+        stack[top] = astNode.getSibling();
+        created[top++] = sibling;
+      }
+      if(astNode.getChild()!=null){
+        int child = createArenaNode(astNode.getChild());
+        setChild(node, child);
+        stack[top] = astNode.getChild();
+        created[top++] = child;
+      }
+    }
+    return root;
+  }
+
+  private int createArenaNode(ASTNode astNode){
+    int value = astNode.getSymbol();
+    if(value==SymbolTable.NONE && astNode.getValue()!=null)
+      value = SymbolTable.intern(astNode.getValue());
+    return newNode(astNode.getType(), value, astNode.getSourceLineNumber());
+  }
+
+  /**
+   * Returns an ASTNode of the given node's type, value and line, with no child or sibling.
+   */
+  ASTNode createASTNode(int node){
+    ASTNode astNode = new ASTNode();
+    ASTNodeType type = getType(node);
+    astNode.setType(type);
+    astNode.setSourceLineNumber(getSourceLineNumber(node));
+    int value = getValue(node);
+    if(value!=SymbolTable.NONE){
+      astNode.setValue(SymbolTable.getName(value));
+      if(type==ASTNodeType.IDENTIFIER || type==ASTNodeType.PAREN)
+        astNode.setSymbol(value);
+    }
+    return astNode;
+  }
+}
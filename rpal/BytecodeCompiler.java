@@ -0,0 +1,375 @@
+package rpal;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+
+/**
+ * Compiles a standardized AST to bytecode for the {@link BytecodeMachine}. Every delta becomes a
+ * {@link CompiledFunction}: an int array of opcodes and their operands, laid out like the delta's
+ * body (in execution order, with Beta and Jump turned into jumps to code offsets) and ending in
+ * RETURN. Values the code pushes as they are (literals, builtin functions, Y*) live in a constant
+ * pool shared by all functions.
+ *
+ * A reference to a bound variable becomes LOAD with the address AST.createDeltas() resolved it to:
+ * the number of frames to go up from the current one and the slot in that frame, where a frame
+ * holds the bound variables of one call of a delta, just like the CSE machine's environments.
+ */
+class BytecodeCompiler{
+  //push constants[operand]
+  static final int CONST = 0;
+  //push the value in slot operand2 of the frame operand1 levels up; if it is unset, push
+  //the value of the outer variable of constants[operand3] (see Variable)
+  static final int LOAD = 1;
+  //report the undeclared identifier constants[operand]
+  static final int UNDECLARED = 2;
+  //RULE 2: push a closure of functions[operand] over the current frame
+  static final int CLOSURE = 3;
+  //RULE 9: pop operand values and push the tuple of them
+  static final int TUPLE = 4;
+  //RULE 8: pop a truth value and jump to operand if it is false
+  static final int BETA = 5;
+  static final int JUMP = 6;
+  //RULE 3
+  static final int GAMMA = 7;
+  static final int RETURN = 8;
+  //RULE 6 and 7, with no operands
+  static final int PLUS = 9;
+  static final int MINUS = 10;
+  static final int MULT = 11;
+  static final int DIV = 12;
+  static final int EXP = 13;
+  static final int LS = 14;
+  static final int LE = 15;
+  static final int GR = 16;
+  static final int GE = 17;
+  static final int EQ = 18;
+  static final int NE = 19;
+  static final int OR = 20;
+  static final int AND = 21;
+  static final int AUG = 22;
+  static final int NOT = 23;
+  static final int NEG = 24;
+
+  /**
+   * Number of ints taken by each opcode and its operands.
+   */
+  static final int[] LENGTHS = {2, 4, 2, 2, 2, 2, 2, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1, 1};
+
+  private ArrayList<CompiledFunction> functions;
+  private ArrayList<ASTNode> constants;
+  private ArrayDeque<PendingFunction> pendingFunctions;
+
+  /**
+   * Compiles the program. The function that evaluates it is the first of the returned program.
+   */
+  public CompiledProgram compile(AST ast){
+    if(!ast.isStandardized())
+      throw new RuntimeException("AST has NOT been standardized!");
+    functions = new ArrayList<CompiledFunction>();
+    constants = new ArrayList<ASTNode>();
+    pendingFunctions = new ArrayDeque<PendingFunction>();
+
+    Delta rootDelta = ast.createDeltas();
+    int root = addFunction(rootDelta);
+    while(!pendingFunctions.isEmpty()){
+      PendingFunction pending = pendingFunctions.pop();
+      compileFunction(pending.delta, functions.get(pending.function));
+    }
+    return new CompiledProgram(functions.toArray(new CompiledFunction[0]), constants.toArray(new ASTNode[0]), root);
+  }
+
+  private int addFunction(Delta delta){
+    CompiledFunction function = new CompiledFunction(delta.getBoundVars(), delta.getIndex(), delta.getSourceLineNumber());
+    functions.add(function);
+    PendingFunction pending = new PendingFunction();
+    pending.delta = delta;
+    pending.function = functions.size()-1;
+    pendingFunctions.add(pending);
+    return pending.function;
+  }
+
+  private void compileFunction(Delta delta, CompiledFunction function){
+    ASTNode[] body = delta.getBody();
+
+    //code offset of each instruction of the body, for the jumps
+    int[] offsets = new int[body.length+1];
+    for(int i = 0; i < body.length; i++)
+      offsets[i+1] = offsets[i]+LENGTHS[opcodeOf(body[i])];
+
+    int[] code = new int[offsets[body.length]+1];
+    int pc = 0;
+    //values on the stack while the body runs, and on entry to the else part of each conditional
+    int depth = 0;
+    int maxDepth = 0;
+    int[] elseDepths = new int[body.length+1];
+    for(int i = 0; i < body.length; i++){
+      ASTNode node = body[i];
+      int opcode = opcodeOf(node);
+      code[pc] = opcode;
+      depth += stackEffect(opcode, node);
+      maxDepth = Math.max(maxDepth, depth);
+      switch(opcode){
+        case CONST:
+          code[pc+1] = addConstant(node.getType()==ASTNodeType.NIL? Tuple.NIL : node);
+          break;
+        case LOAD:
+          code[pc+1] = ((Variable)node).getDepth();
+          code[pc+2] = ((Variable)node).getSlot();
+          code[pc+3] = addConstant(node);
+          break;
+        case UNDECLARED:
+          code[pc+1] = addConstant(node);
+          break;
+        case CLOSURE:
+          code[pc+1] = addFunction((Delta)node);
+          break;
+        case TUPLE:
+          code[pc+1] = ((Tau)node).getNumElements();
+          break;
+        case BETA:
+          code[pc+1] = offsets[((Beta)node).getElseAddress()];
+          elseDepths[((Beta)node).getElseAddress()] = depth;
+          break;
+        case JUMP: //always the last instruction of a then part
+          code[pc+1] = offsets[((Jump)node).getAddress()];
+          depth = elseDepths[i+1];
+          break;
+        default:
+          break;
+      }
+      pc += LENGTHS[opcode];
+    }
+    code[pc] = RETURN;
+    function.setCode(code);
+    function.setMaxStack(maxDepth);
+    nameFunctions(body, code, offsets, function);
+  }
+
+  /**
+   * Names the functions this body binds to a variable: "let f = fn ..." is standardized to
+   * gamma (lambda f. ...) (lambda ...), and the delta Y* is applied to for "rec f = fn ..." is
+   * lambda f. lambda ...
+   */
+  private void nameFunctions(ASTNode[] body, int[] code, int[] offsets, CompiledFunction function){
+    if(function.isClosureOnly()){
+      functions.get(code[1]).setName(SymbolTable.getName(function.getBoundVars()[0]));
+      return;
+    }
+    for(int i = 0; i+2 < body.length; i++){
+      if(body[i].getType()==ASTNodeType.DELTA && body[i+1].getType()==ASTNodeType.DELTA &&
+          body[i+2].getType()==ASTNodeType.GAMMA && ((Delta)body[i+1]).getBoundVars().length==1)
+        functions.get(code[offsets[i]+1]).setName(SymbolTable.getName(((Delta)body[i+1]).getBoundVars()[0]));
+    }
+  }
+
+  /**
+   * How many values the instruction adds to the stack. A gamma that calls a closure leaves the
+   * result in the place of its two operands, just like any other gamma.
+   */
+  private int stackEffect(int opcode, ASTNode node){
+    switch(opcode){
+      case CONST:
+      case LOAD:
+      case CLOSURE:
+        return 1;
+      case UNDECLARED:
+      case JUMP:
+      case NOT:
+      case NEG:
+        return 0;
+      case TUPLE:
+        return 1-((Tau)node).getNumElements();
+      default: //BETA, GAMMA and the binary operators
+        return -1;
+    }
+  }
+
+  private int opcodeOf(ASTNode node){
+    switch(node.getType()){
+      case VARIABLE:
+        return LOAD;
+      case IDENTIFIER: //not bound by any enclosing lambda
+        return SymbolTable.isBuiltin(node.getSymbol())? CONST : UNDECLARED;
+      case NIL:
+        return CONST;
+      case TAU:
+        return TUPLE;
+      case DELTA:
+        return CLOSURE;
+      case BETA:
+        return BETA;
+      case JUMP:
+        return JUMP;
+      case GAMMA:
+        return GAMMA;
+      case PLUS:
+        return PLUS;
+      case MINUS:
+        return MINUS;
+      case MULT:
+        return MULT;
+      case DIV:
+        return DIV;
+      case EXP:
+        return EXP;
+      case LS:
+        return LS;
+      case LE:
+        return LE;
+      case GR:
+        return GR;
+      case GE:
+        return GE;
+      case EQ:
+        return EQ;
+      case NE:
+        return NE;
+      case OR:
+        return OR;
+      case AND:
+        return AND;
+      case AUG:
+        return AUG;
+      case NOT:
+        return NOT;
+      case NEG:
+        return NEG;
+      default:
+        return CONST; //literals and Y*
+    }
+  }
+
+  private int addConstant(ASTNode node){
+    constants.add(node);
+    return constants.size()-1;
+  }
+
+  private static class PendingFunction{
+    Delta delta;
+    int function;
+  }
+}
+
+/**
+ * The code of one delta. See {@link BytecodeCompiler}.
+ */
+class CompiledFunction{
+  private int[] code;
+  private final int[] boundVars;
+  private final int index; //of the delta, for printing closures
+  private final int sourceLineNumber;
+  private int maxStack; //the most values the code has on the stack at once
+  private boolean closureOnly;
+  private String name; //of the RPAL function, if known, for the JIT compiler's class names
+  //see JitCompiler
+  private int callCount;
+  private CompiledCode jitCode;
+  private boolean jitFailed;
+
+  public CompiledFunction(int[] boundVars, int index, int sourceLineNumber){
+    this.boundVars = boundVars;
+    this.index = index;
+    this.sourceLineNumber = sourceLineNumber;
+  }
+
+  public int[] getCode(){
+    return code;
+  }
+
+  void setCode(int[] code){
+    this.code = code;
+    closureOnly = code.length==3 && code[0]==BytecodeCompiler.CLOSURE && boundVars.length==1;
+  }
+
+  /**
+   * Returns whether the code just returns a closure of another function.
+   */
+  public boolean isClosureOnly(){
+    return closureOnly;
+  }
+
+  public int getMaxStack(){
+    return maxStack;
+  }
+
+  void setMaxStack(int maxStack){
+    this.maxStack = maxStack;
+  }
+
+  public int getNumBoundVars(){
+    return boundVars.length;
+  }
+
+  public int[] getBoundVars(){
+    return boundVars;
+  }
+
+  public int getIndex(){
+    return index;
+  }
+
+  public int getSourceLineNumber(){
+    return sourceLineNumber;
+  }
+
+  /**
+   * Returns the name the function is bound to ("f" for "let f x = ..." or "rec f x = ..."), or
+   * "lambda" if it is anonymous.
+   */
+  public String getName(){
+    return name!=null? name : "lambda";
+  }
+
+  void setName(String name){
+    this.name = name;
+  }
+
+  /**
+   * Counts a call made by the interpreter and returns the number of calls so far.
+   */
+  int countCall(){
+    return ++callCount;
+  }
+
+  public CompiledCode getJitCode(){
+    return jitCode;
+  }
+
+  void setJitCode(CompiledCode jitCode){
+    this.jitCode = jitCode;
+  }
+
+  public boolean isJitFailed(){
+    return jitFailed;
+  }
+
+  void setJitFailed(boolean jitFailed){
+    this.jitFailed = jitFailed;
+  }
+}
+
+/**
+ * A compiled program: its functions, the first of which evaluates the program, and its constants.
+ */
+class CompiledProgram{
+  private final CompiledFunction[] functions;
+  private final ASTNode[] constants;
+  private final int root;
+
+  public CompiledProgram(CompiledFunction[] functions, ASTNode[] constants, int root){
+    this.functions = functions;
+    this.constants = constants;
+    this.root = root;
+  }
+
+  public CompiledFunction[] getFunctions(){
+    return functions;
+  }
+
+  public ASTNode[] getConstants(){
+    return constants;
+  }
+
+  public CompiledFunction getRootFunction(){
+    return functions[root];
+  }
+}
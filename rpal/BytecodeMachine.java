@@ -0,0 +1,451 @@
+package rpal;
+import java.io.File;
+import java.util.Arrays;
+
+import static rpal.BytecodeCompiler.*;
+
+/**
+ * Evaluates a program compiled by the {@link BytecodeCompiler}. It implements the same rules as the
+ * {@link CSEMachine}, and gives the same output, but runs int opcodes in a single loop: the control
+ * is the code of the current function and a program counter, the value stack is an array, and
+ * closure calls push a return address on an explicit call stack instead of recursing in Java.
+ * With a JIT threshold, functions that are called often are compiled to JVM bytecode instead.
+ */
+public class BytecodeMachine{
+
+  private CompiledProgram program;
+  private CompiledFunction[] functions;
+  private ASTNode[] constants;
+  private int jitThreshold; //0 if functions are never compiled
+  private JitCompiler jitCompiler;
+
+  public BytecodeMachine(AST ast){
+    this(ast, 0, null);
+  }
+
+  /**
+   * Creates a machine that compiles each function to JVM bytecode (see {@link JitCompiler}) once
+   * the interpreter has called it jitThreshold times. A threshold of 0 turns the compiler off.
+   * sourceFile is the path of the RPAL program, which the compiled classes name as their source
+   * file, or null if there is none.
+   */
+  public BytecodeMachine(AST ast, int jitThreshold, String sourceFile){
+    program = new BytecodeCompiler().compile(ast);
+    functions = program.getFunctions();
+    constants = program.getConstants();
+    this.jitThreshold = jitThreshold;
+    if(jitThreshold>0)
+      jitCompiler = new JitCompiler(sourceFile==null? null : new File(sourceFile).getName());
+  }
+
+  public void evaluateProgram(){
+    if(jitCompiler==null){
+      execute(program.getRootFunction(), new Frame(null, new ASTNode[0]));
+      return;
+    }
+
+    //compiled functions call each other on the Java stack, so give them a large one
+    runWithLargeStack(new Runnable(){
+      public void run(){
+        execute(program.getRootFunction(), new Frame(null, new ASTNode[0]));
+      }
+    });
+  }
+
+  /**
+   * Runs the evaluation on a thread with a 1GB stack, for evaluators in which RPAL calls are Java
+   * calls, and rethrows whatever it throws.
+   */
+  static void runWithLargeStack(final Runnable evaluation){
+    final Throwable[] thrown = new Throwable[1];
+    Thread thread = new Thread(null, new Runnable(){
+      public void run(){
+        try{
+          evaluation.run();
+        }catch(Throwable e){
+          thrown[0] = e;
+        }
+      }
+    }, "rpal", 1L<<30);
+    thread.start();
+    try{
+      thread.join();
+    }catch(InterruptedException e){
+      throw new RuntimeException(e);
+    }
+    if(thrown[0] instanceof RuntimeException)
+      throw (RuntimeException)thrown[0];
+    if(thrown[0] instanceof Error)
+      throw (Error)thrown[0];
+  }
+
+  /**
+   * Runs the given function in the given frame and returns its result. Calls between interpreted
+   * functions stay in this loop; it is only entered again by compiled code calling a function that
+   * has not been compiled.
+   */
+  private ASTNode execute(CompiledFunction entry, Frame frame){
+    int[] code = entry.getCode();
+    int pc = 0;
+
+    //grown on entry to a function to hold all the values its code can push
+    ASTNode[] stack = new ASTNode[Math.max(16, entry.getMaxStack()+1)];
+    int sp = 0;
+
+    int[][] returnCodes = new int[16][];
+    int[] returnPcs = new int[16];
+    Frame[] returnFrames = new Frame[16];
+    int callDepth = 0;
+
+    while(true){
+      switch(code[pc]){
+        case CONST:
+          stack[sp++] = constants[code[pc+1]];
+          pc += 2;
+          break;
+        case LOAD:{ // RULE 1
+          Frame f = frame;
+          for(int depth = code[pc+1]; depth > 0; depth--)
+            f = f.parent;
+          int slot = code[pc+2];
+          ASTNode value = slot==0? f.value : f.slots[slot];
+          if(value==null) //bound to a missing tuple element
+            value = lookupOuter(frame, (Variable)constants[code[pc+3]]);
+          stack[sp++] = value;
+          pc += 4;
+          break;
+        }
+        case UNDECLARED:
+          Operations.unboundIdentifier(constants[code[pc+1]]);
+          pc += 2;
+          break;
+        case CLOSURE: //RULE 2
+          stack[sp++] = new BytecodeClosure(functions[code[pc+1]], frame);
+          pc += 2;
+          break;
+        case TUPLE:{ //RULE 9
+          int numElements = code[pc+1];
+          if(numElements==0)
+            stack[sp++] = Tuple.NIL;
+          else{
+            ASTNode[] elements = new ASTNode[numElements];
+            for(int i = 0; i < numElements; i++)
+              elements[i] = stack[--sp];
+            stack[sp++] = Tuple.of(elements);
+          }
+          pc += 2;
+          break;
+        }
+        case BETA: // RULE 8
+          if(Operations.testCondition(stack[--sp]))
+            pc += 2;
+          else
+            pc = code[pc+1];
+          break;
+        case JUMP:
+          pc = code[pc+1];
+          break;
+        case GAMMA:{ //RULE 3
+          ASTNode rator = stack[--sp];
+          ASTNode rand = stack[--sp];
+          int returnPc = pc+1;
+
+          if(rator.getType()==ASTNodeType.ETA){
+            //RULE 13: apply the eta's delta to the eta, then this gamma again to apply the
+            //result to rand
+            stack[sp++] = rand;
+            BytecodeClosure closure = ((BytecodeEta)rator).getClosure();
+            CompiledFunction function = closure.getFunction();
+            if(function.isClosureOnly()){
+              //the usual "rec f = fn ..." case, where the delta just returns the closure of its
+              //body: make that closure here rather than calling the delta
+              Frame etaFrame = new Frame(closure.getFrame(), rator);
+              stack[sp++] = new BytecodeClosure(functions[function.getCode()[1]], etaFrame);
+              break;
+            }
+            rand = rator;
+            rator = closure;
+            returnPc = pc;
+          }
+
+          if(rator.getType()==ASTNodeType.DELTA){
+            BytecodeClosure closure = (BytecodeClosure)rator;
+            CompiledFunction function = closure.getFunction();
+            if(jitCompiler!=null && (function.getJitCode()!=null || compileIfHot(function))){
+              stack[sp++] = function.getJitCode().run(bind(closure, rand), constants, this);
+              pc = returnPc;
+              break;
+            }
+            if(callDepth==returnPcs.length){
+              returnCodes = Arrays.copyOf(returnCodes, callDepth*2);
+              returnPcs = Arrays.copyOf(returnPcs, callDepth*2);
+              returnFrames = Arrays.copyOf(returnFrames, callDepth*2);
+            }
+            returnCodes[callDepth] = code;
+            returnPcs[callDepth] = returnPc;
+            returnFrames[callDepth] = frame;
+            callDepth++;
+
+            frame = bind(closure, rand);
+            code = function.getCode();
+            pc = 0;
+            if(sp+function.getMaxStack()>=stack.length)
+              stack = Arrays.copyOf(stack, Math.max(stack.length*2, sp+function.getMaxStack()+1));
+          }
+          else if(rator.getType()==ASTNodeType.YSTAR){
+            //RULE 12
+            if(rand.getType()!=ASTNodeType.DELTA)
+              EvaluationError.printError(rand.getSourceLineNumber(), "Expected a Delta; was given \""+rand.getValue()+"\"");
+            stack[sp++] = new BytecodeEta((BytecodeClosure)rand);
+            pc++;
+          }
+          else if(rator.getType()==ASTNodeType.TUPLE){
+            stack[sp++] = Operations.selectTupleElement((Tuple)rator, rand);
+            pc++;
+          }
+          else{
+            ASTNode result = Operations.applyBuiltin(rator, rand);
+            if(result==null)
+              EvaluationError.printError(rator.getSourceLineNumber(), "Don't know how to evaluate \""+rator.getValue()+"\"");
+            stack[sp++] = result;
+            pc++;
+          }
+          break;
+        }
+        case RETURN: //RULE 5
+          if(callDepth==0)
+            return sp>0? stack[sp-1] : null;
+          callDepth--;
+          code = returnCodes[callDepth];
+          pc = returnPcs[callDepth];
+          frame = returnFrames[callDepth];
+          returnCodes[callDepth] = null;
+          returnFrames[callDepth] = null;
+          break;
+        case PLUS:
+          sp = binaryOperation(ASTNodeType.PLUS, stack, sp);
+          pc++;
+          break;
+        case MINUS:
+          sp = binaryOperation(ASTNodeType.MINUS, stack, sp);
+          pc++;
+          break;
+        case MULT:
+          sp = binaryOperation(ASTNodeType.MULT, stack, sp);
+          pc++;
+          break;
+        case DIV:
+          sp = binaryOperation(ASTNodeType.DIV, stack, sp);
+          pc++;
+          break;
+        case EXP:
+          sp = binaryOperation(ASTNodeType.EXP, stack, sp);
+          pc++;
+          break;
+        case LS:
+          sp = binaryOperation(ASTNodeType.LS, stack, sp);
+          pc++;
+          break;
+        case LE:
+          sp = binaryOperation(ASTNodeType.LE, stack, sp);
+          pc++;
+          break;
+        case GR:
+          sp = binaryOperation(ASTNodeType.GR, stack, sp);
+          pc++;
+          break;
+        case GE:
+          sp = binaryOperation(ASTNodeType.GE, stack, sp);
+          pc++;
+          break;
+        case EQ:
+          sp = binaryOperation(ASTNodeType.EQ, stack, sp);
+          pc++;
+          break;
+        case NE:
+          sp = binaryOperation(ASTNodeType.NE, stack, sp);
+          pc++;
+          break;
+        case OR:
+          sp = binaryOperation(ASTNodeType.OR, stack, sp);
+          pc++;
+          break;
+        case AND:
+          sp = binaryOperation(ASTNodeType.AND, stack, sp);
+          pc++;
+          break;
+        case AUG:
+          sp = binaryOperation(ASTNodeType.AUG, stack, sp);
+          pc++;
+          break;
+        case NOT: // RULE 7
+          stack[sp-1] = Operations.not(stack[sp-1]);
+          pc++;
+          break;
+        case NEG:
+          stack[sp-1] = Operations.neg(stack[sp-1]);
+          pc++;
+          break;
+        default:
+          throw new IllegalStateException("Bad opcode "+code[pc]+" at "+pc);
+      }
+    }
+  }
+
+  /**
+   * The frame of a call of the closure with rand as its argument.
+   */
+  private static Frame bind(BytecodeClosure closure, ASTNode rand){
+    CompiledFunction function = closure.getFunction();
+    if(function.getNumBoundVars()==1) //RULE 4
+      return new Frame(closure.getFrame(), rand);
+    return new Frame(closure.getFrame(), Operations.bindTuple(rand, function.getNumBoundVars())); //RULE 11
+  }
+
+  /**
+   * Counts a call of the function by the interpreter and compiles it once it is called often
+   * enough. Returns whether it has compiled code now.
+   */
+  private boolean compileIfHot(CompiledFunction function){
+    if(function.isJitFailed() || function.countCall()<jitThreshold)
+      return false;
+    jitCompiler.compile(function);
+    return function.getJitCode()!=null;
+  }
+
+  /**
+   * RULE 3 for compiled code: applies rator to rand and returns the result.
+   */
+  ASTNode apply(ASTNode rator, ASTNode rand){
+    switch(rator.getType()){
+      case DELTA:{
+        BytecodeClosure closure = (BytecodeClosure)rator;
+        CompiledFunction function = closure.getFunction();
+        Frame frame = bind(closure, rand);
+        if(function.getJitCode()!=null || compileIfHot(function))
+          return function.getJitCode().run(frame, constants, this);
+        return execute(function, frame);
+      }
+      case ETA:{ //RULE 13
+        BytecodeClosure closure = ((BytecodeEta)rator).getClosure();
+        CompiledFunction function = closure.getFunction();
+        ASTNode f;
+        if(function.isClosureOnly())
+          f = new BytecodeClosure(functions[function.getCode()[1]], new Frame(closure.getFrame(), rator));
+        else
+          f = apply(closure, rator);
+        return apply(f, rand);
+      }
+      case YSTAR: //RULE 12
+        if(rand.getType()!=ASTNodeType.DELTA)
+          EvaluationError.printError(rand.getSourceLineNumber(), "Expected a Delta; was given \""+rand.getValue()+"\"");
+        return new BytecodeEta((BytecodeClosure)rand);
+      case TUPLE:
+        return Operations.selectTupleElement((Tuple)rator, rand);
+      default:
+        ASTNode result = Operations.applyBuiltin(rator, rand);
+        if(result==null)
+          EvaluationError.printError(rator.getSourceLineNumber(), "Don't know how to evaluate \""+rator.getValue()+"\"");
+        return result;
+    }
+  }
+
+  ASTNode newClosure(int function, Frame frame){
+    return new BytecodeClosure(functions[function], frame);
+  }
+
+  // RULE 6
+  private static int binaryOperation(ASTNodeType type, ASTNode[] stack, int sp){
+    ASTNode rand1 = stack[sp-1];
+    ASTNode rand2 = stack[sp-2];
+    stack[sp-1] = null;
+    stack[sp-2] = Operations.binaryOperation(type, rand1, rand2);
+    return sp-1;
+  }
+
+  /**
+   * The value of a variable bound to a missing tuple element, looked up from the given frame: that
+   * of the nearest enclosing binding of the name that has one, or else the builtin function of that
+   * name.
+   */
+  static ASTNode lookupOuter(Frame frame, Variable variable){
+    for(Variable outer = variable.getOuter(); outer!=null; outer = outer.getOuter()){
+      Frame f = frame;
+      for(int depth = outer.getDepth(); depth > 0; depth--)
+        f = f.parent;
+      ASTNode value = outer.getSlot()==0? f.value : f.slots[outer.getSlot()];
+      if(value!=null)
+        return value;
+    }
+    return Operations.unboundIdentifier(variable.getIdentifier());
+  }
+
+  /**
+   * The bound variables of one call, linked to the frame the closure was created in.
+   */
+  static final class Frame{
+    final Frame parent;
+    final ASTNode value; //the first variable; the only one of most functions
+    final ASTNode[] slots; //all the variables, if there is more than one
+
+    Frame(Frame parent, ASTNode value){
+      this.parent = parent;
+      this.value = value;
+      this.slots = null;
+    }
+
+    Frame(Frame parent, ASTNode[] slots){
+      this.parent = parent;
+      this.value = slots.length>0? slots[0] : null;
+      this.slots = slots;
+    }
+  }
+}
+
+/**
+ * A closure of the bytecode machine: a compiled function and the frame it was created in.
+ */
+class BytecodeClosure extends ASTNode{
+  private final CompiledFunction function;
+  private final BytecodeMachine.Frame frame;
+
+  public BytecodeClosure(CompiledFunction function, BytecodeMachine.Frame frame){
+    setType(ASTNodeType.DELTA);
+    setSourceLineNumber(function.getSourceLineNumber());
+    this.function = function;
+    this.frame = frame;
+  }
+
+  public CompiledFunction getFunction(){
+    return function;
+  }
+
+  public BytecodeMachine.Frame getFrame(){
+    return frame;
+  }
+
+  //used if the program evaluation results in a partial application
+  @Override
+  public String getValue(){
+    return "[lambda closure: "+SymbolTable.getName(function.getBoundVars()[0])+": "+function.getIndex()+"]";
+  }
+}
+
+class BytecodeEta extends ASTNode{
+  private final BytecodeClosure closure;
+
+  public BytecodeEta(BytecodeClosure closure){
+    setType(ASTNodeType.ETA);
+    this.closure = closure;
+  }
+
+  public BytecodeClosure getClosure(){
+    return closure;
+  }
+
+  //used if the program evaluation results in a partial application
+  @Override
+  public String getValue(){
+    return "[eta closure: "+SymbolTable.getName(closure.getFunction().getBoundVars()[0])+": "+closure.getFunction().getIndex()+"]";
+  }
+}
@@ -1,9 +1,6 @@
 package rpal;
-import java.util.Stack;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 
 
 /*
@@ -12,56 +9,125 @@ import java.util.Map;
 
 public class CSEMachine{
 
-  private Stack<ASTNode> valueStack;
+  private NodeStack valueStack;
   private Delta rootDelta;
+  //the body being evaluated, the index in it of the next instruction to execute, and the
+  //environment it is evaluated in
+  private ASTNode[] code;
+  private int pc;
+  private Environment env;
+  //the rest of the control: an environment marker for each closure call in progress, holding the
+  //caller's body, the index of its next instruction and its environment
+  private ASTNode[][] markerCodes;
+  private int[] markerPcs;
+  private Environment[] markerEnvs;
+  private int numMarkers;
+
+  //the control RULE 13 leaves: two gammas, one applying the eta's delta to the eta and one applying
+  //the result to the rand
+  private static final ASTNode[] RULE_13_CONTROL = {createGamma(), createGamma()};
 
   public CSEMachine(AST ast){
 
     if(!ast.isStandardized())
       throw new RuntimeException("AST has NOT been standardized!"); 
     rootDelta = ast.createDeltas();
-    rootDelta.setLinkedEnv(new Environment()); 
-    valueStack = new Stack<ASTNode>();
+    valueStack = new NodeStack(64);
+    markerCodes = new ASTNode[64][];
+    markerPcs = new int[64];
+    markerEnvs = new Environment[64];
   }
 
-  public void evaluateProgram(){
-    processControlStack(rootDelta, rootDelta.getLinkedEnv());
+  private static ASTNode createGamma(){
+    ASTNode gamma = new ASTNode();
+    gamma.setType(ASTNodeType.GAMMA);
+    return gamma;
   }
-  
 
-  private void processControlStack(Delta currentDelta, Environment currentEnv){
-    
-    Stack<ASTNode> controlStack = new Stack<ASTNode>();
-    controlStack.addAll(currentDelta.getBody());
+  /**
+   * Evaluates the program in a single loop. A closure call pushes an environment marker and
+   * continues with the body of the closure, which is never copied: the instructions are read from
+   * its array with a program counter. When the body is done, RULE 5 pops the marker and the
+   * caller's body, program counter and environment are restored. So the depth of recursion in the
+   * program is only limited by the heap.
+   */
+  public void evaluateProgram(){
+    code = rootDelta.getBody();
+    pc = 0;
+    env = new Environment(new ASTNode[0], new ASTNode[0]);
     
-    while(!controlStack.isEmpty())
-      processCurrentNode(currentDelta, currentEnv, controlStack);
+    while(true){
+      if(pc<code.length)
+        processCurrentNode();
+      else if(numMarkers>0)
+        exitEnvironment();
+      else
+        return;
+    }
+  }
+
+  /**
+   * Continues with the given body in the given environment, first pushing an environment marker
+   * to come back to the current one, unless there is nothing left to do in it but return.
+   */
+  private void enterEnvironment(ASTNode[] body, Environment newEnv, boolean tailCall){
+    if(!tailCall){
+      if(numMarkers==markerPcs.length){
+        markerCodes = Arrays.copyOf(markerCodes, numMarkers*2);
+        markerPcs = Arrays.copyOf(markerPcs, numMarkers*2);
+        markerEnvs = Arrays.copyOf(markerEnvs, numMarkers*2);
+      }
+      markerCodes[numMarkers] = code;
+      markerPcs[numMarkers] = pc;
+      markerEnvs[numMarkers] = env;
+      numMarkers++;
+    }
+    code = body;
+    pc = 0;
+    env = newEnv;
+  }
+
+  // RULE 5
+  private void exitEnvironment(){
+    numMarkers--;
+    code = markerCodes[numMarkers];
+    pc = markerPcs[numMarkers];
+    env = markerEnvs[numMarkers];
+    markerCodes[numMarkers] = null;
+    markerEnvs[numMarkers] = null;
   }
 
-  private void processCurrentNode(Delta currentDelta, Environment currentEnv, Stack<ASTNode> currentControlStack){
-    ASTNode node = currentControlStack.pop();
+  private void processCurrentNode(){
+    ASTNode node = code[pc++];
     if(applyBinaryOperation(node))
       return;
     else if(applyUnaryOperation(node))
       return;
     else{
       switch(node.getType()){
+        case VARIABLE:
+          handleVariable((Variable)node);
+          break;
         case IDENTIFIER:
-          handleIdentifiers(node, currentEnv);
+          handleUnboundIdentifier(node);
           break;
         case NIL:
+          valueStack.push(Tuple.NIL);
+          break;
         case TAU:
-          createTuple(node);
+          createTuple((Tau)node);
           break;
         case BETA:
-          handleBeta((Beta)node, currentControlStack);
+          handleBeta((Beta)node);
+          break;
+        case JUMP:
+          pc = ((Jump)node).getAddress();
           break;
         case GAMMA:
-          applyGamma(currentDelta, node, currentEnv, currentControlStack);
+          applyGamma(isTailPosition());
           break;
         case DELTA:
-          ((Delta)node).setLinkedEnv(currentEnv); //RULE 2
-          valueStack.push(node);
+          valueStack.push(((Delta)node).createClosure(env)); //RULE 2
           break;
         default:
          
@@ -85,255 +151,73 @@ public class CSEMachine{
       case LE:
       case GR:
       case GE:
-        binaryArithmeticOp(rator.getType());
-        return true;
       case EQ:
       case NE:
-        binaryLogicalEqNeOp(rator.getType());
-        return true;
       case OR:
       case AND:
-        binaryLogicalOrAndOp(rator.getType());
-        return true;
       case AUG:
-        augTuples();
+        ASTNode rand1 = valueStack.pop();
+        ASTNode rand2 = valueStack.pop();
+        valueStack.push(Operations.binaryOperation(rator.getType(), rand1, rand2));
         return true;
       default:
         return false;
     }
   }
 
-  private void binaryArithmeticOp(ASTNodeType type){
-    ASTNode rand1 = valueStack.pop();
-    ASTNode rand2 = valueStack.pop();
-    if(rand1.getType()!=ASTNodeType.INTEGER || rand2.getType()!=ASTNodeType.INTEGER)
-      EvaluationError.printError(rand1.getSourceLineNumber(), "Expected two integers; was given \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
-
-    ASTNode result = new ASTNode();
-    result.setType(ASTNodeType.INTEGER);
-
-    switch(type){
-      case PLUS:
-        result.setValue(Integer.toString(Integer.parseInt(rand1.getValue())+Integer.parseInt(rand2.getValue())));
-        break;
-      case MINUS:
-        result.setValue(Integer.toString(Integer.parseInt(rand1.getValue())-Integer.parseInt(rand2.getValue())));
-        break;
-      case MULT:
-        result.setValue(Integer.toString(Integer.parseInt(rand1.getValue())*Integer.parseInt(rand2.getValue())));
-        break;
-      case DIV:
-        result.setValue(Integer.toString(Integer.parseInt(rand1.getValue())/Integer.parseInt(rand2.getValue())));
-        break;
-      case EXP:
-        result.setValue(Integer.toString((int)Math.pow(Integer.parseInt(rand1.getValue()), Integer.parseInt(rand2.getValue()))));
-        break;
-      case LS:
-        if(Integer.parseInt(rand1.getValue())<Integer.parseInt(rand2.getValue()))
-          pushTrueNode();
-        else
-          pushFalseNode();
-        return;
-      case LE:
-        if(Integer.parseInt(rand1.getValue())<=Integer.parseInt(rand2.getValue()))
-          pushTrueNode();
-        else
-          pushFalseNode();
-        return;
-      case GR:
-        if(Integer.parseInt(rand1.getValue())>Integer.parseInt(rand2.getValue()))
-          pushTrueNode();
-        else
-          pushFalseNode();
-        return;
-      case GE:
-        if(Integer.parseInt(rand1.getValue())>=Integer.parseInt(rand2.getValue()))
-          pushTrueNode();
-        else
-          pushFalseNode();
-        return;
-      default:
-        break;
-    }
-    valueStack.push(result);
-  }
-
-  private void binaryLogicalEqNeOp(ASTNodeType type){
-    ASTNode rand1 = valueStack.pop();
-    ASTNode rand2 = valueStack.pop();
-
-    if(rand1.getType()==ASTNodeType.TRUE || rand1.getType()==ASTNodeType.FALSE){
-      if(rand2.getType()!=ASTNodeType.TRUE && rand2.getType()!=ASTNodeType.FALSE)
-        EvaluationError.printError(rand1.getSourceLineNumber(), "Cannot compare dissimilar types; was given \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
-      compareTruthValues(rand1, rand2, type);
-      return;
-    }
-
-    if(rand1.getType()!=rand2.getType())
-      EvaluationError.printError(rand1.getSourceLineNumber(), "Cannot compare dissimilar types; was given \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
-
-    if(rand1.getType()==ASTNodeType.STRING)
-      compareStrings(rand1, rand2, type);
-    else if(rand1.getType()==ASTNodeType.INTEGER)
-      compareIntegers(rand1, rand2, type);
-    else
-      EvaluationError.printError(rand1.getSourceLineNumber(), "Don't know how to " + type + " \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
-
-  }
-
-  private void compareTruthValues(ASTNode rand1, ASTNode rand2, ASTNodeType type){
-    if(rand1.getType()==rand2.getType())
-      if(type==ASTNodeType.EQ)
-        pushTrueNode();
-      else
-        pushFalseNode();
-    else
-      if(type==ASTNodeType.EQ)
-        pushFalseNode();
-      else
-        pushTrueNode();
-  }
-
-  private void compareStrings(ASTNode rand1, ASTNode rand2, ASTNodeType type){
-    if(rand1.getValue().equals(rand2.getValue()))
-      if(type==ASTNodeType.EQ)
-        pushTrueNode();
-      else
-        pushFalseNode();
-    else
-      if(type==ASTNodeType.EQ)
-        pushFalseNode();
-      else
-        pushTrueNode();
-  }
-
-  private void compareIntegers(ASTNode rand1, ASTNode rand2, ASTNodeType type){
-    if(Integer.parseInt(rand1.getValue())==Integer.parseInt(rand2.getValue()))
-      if(type==ASTNodeType.EQ)
-        pushTrueNode();
-      else
-        pushFalseNode();
-    else
-      if(type==ASTNodeType.EQ)
-        pushFalseNode();
-      else
-        pushTrueNode();
-  }
-
-  private void binaryLogicalOrAndOp(ASTNodeType type){
-    ASTNode rand1 = valueStack.pop();
-    ASTNode rand2 = valueStack.pop();
-
-    if((rand1.getType()==ASTNodeType.TRUE || rand1.getType()==ASTNodeType.FALSE) &&
-        (rand2.getType()==ASTNodeType.TRUE || rand2.getType()==ASTNodeType.FALSE)){
-      orAndTruthValues(rand1, rand2, type);
-      return;
-    }
-
-    EvaluationError.printError(rand1.getSourceLineNumber(), "Don't know how to " + type + " \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
-  }
-
-  private void orAndTruthValues(ASTNode rand1, ASTNode rand2, ASTNodeType type){
-    if(type==ASTNodeType.OR){
-      if(rand1.getType()==ASTNodeType.TRUE || rand2.getType()==ASTNodeType.TRUE)
-        pushTrueNode();
-      else
-        pushFalseNode();
-    }
-    else{
-      if(rand1.getType()==ASTNodeType.TRUE && rand2.getType()==ASTNodeType.TRUE)
-        pushTrueNode();
-      else
-        pushFalseNode();
-    }
-  }
-
-  private void augTuples(){
-    ASTNode rand1 = valueStack.pop();
-    ASTNode rand2 = valueStack.pop();
-
-    if(rand1.getType()!=ASTNodeType.TUPLE)
-      EvaluationError.printError(rand1.getSourceLineNumber(), "Cannot augment a non-tuple \""+rand1.getValue()+"\"");
-
-    ASTNode childNode = rand1.getChild();
-    if(childNode==null)
-      rand1.setChild(rand2);
-    else{
-      while(childNode.getSibling()!=null)
-        childNode = childNode.getSibling();
-      childNode.setSibling(rand2);
-    }
-    rand2.setSibling(null);
-
-    valueStack.push(rand1);
-  }
-
   // RULE 7
   private boolean applyUnaryOperation(ASTNode rator){
     switch(rator.getType()){
       case NOT:
-        not();
+        valueStack.push(Operations.not(valueStack.pop()));
         return true;
       case NEG:
-        neg();
+        valueStack.push(Operations.neg(valueStack.pop()));
         return true;
       default:
         return false;
     }
   }
 
-  private void not(){
-    ASTNode rand = valueStack.pop();
-    if(rand.getType()!=ASTNodeType.TRUE && rand.getType()!=ASTNodeType.FALSE)
-      EvaluationError.printError(rand.getSourceLineNumber(), "Expecting a truthvalue; was given \""+rand.getValue()+"\"");
-
-    if(rand.getType()==ASTNodeType.TRUE)
-      pushFalseNode();
-    else
-      pushTrueNode();
-  }
-
-  private void neg(){
-    ASTNode rand = valueStack.pop();
-    if(rand.getType()!=ASTNodeType.INTEGER)
-      EvaluationError.printError(rand.getSourceLineNumber(), "Expecting a truthvalue; was given \""+rand.getValue()+"\"");
-
-    ASTNode result = new ASTNode();
-    result.setType(ASTNodeType.INTEGER);
-    result.setValue(Integer.toString(-1*Integer.parseInt(rand.getValue())));
-    valueStack.push(result);
+  /**
+   * Returns whether nothing is left to do in the body after the instruction just executed, but
+   * return: the instruction was the last of the body, or of a then or else part at the end of it.
+   */
+  private boolean isTailPosition(){
+    int next = pc;
+    while(next<code.length && code[next].getType()==ASTNodeType.JUMP)
+      next = ((Jump)code[next]).getAddress();
+    return next==code.length;
   }
 
-  //RULE 3
-  private void applyGamma(Delta currentDelta, ASTNode node, Environment currentEnv, Stack<ASTNode> currentControlStack){
+  //RULE 3. A closure called in tail position is evaluated in place of the current body.
+  private void applyGamma(boolean tailCall){
     ASTNode rator = valueStack.pop();
     ASTNode rand = valueStack.pop();
 
+    if(rator.getType()==ASTNodeType.ETA && ((Eta)rator).getRecursiveClosure()!=null)
+      rator = ((Eta)rator).getRecursiveClosure(); //RULE 13, with the first gamma done in RULE 12
+
     if(rator.getType()==ASTNodeType.DELTA){
       Delta nextDelta = (Delta) rator;
       
-      //Delta has a link to the environment in effect when it is pushed on to the value stack (search
-      //for 'RULE 2' in this file to see where it's done)
+      //Delta carries the values of its free variables, copied from the environment in effect when
+      //it was pushed on to the value stack (search for 'RULE 2' in this file to see where it's done)
       //We construct a new environment here that will contain all the bindings (single or multiple)
-      //required by this Delta. This new environment will link back to the environment carried by the Delta.
-      Environment newEnv = new Environment();
-      newEnv.setParent(nextDelta.getLinkedEnv());
+      //required by this Delta, in the order of its bound variables, along with those values.
+      ASTNode[] values;
       
       //RULE 4
-      if(nextDelta.getBoundVars().size()==1){
-        newEnv.addMapping(nextDelta.getBoundVars().get(0), rand);
+      if(nextDelta.getBoundVars().length==1){
+        values = new ASTNode[]{rand};
       }
       //RULE 11
       else{
-        if(rand.getType()!=ASTNodeType.TUPLE)
-          EvaluationError.printError(rand.getSourceLineNumber(), "Expected a tuple; was given \""+rand.getValue()+"\"");
-        
-        for(int i = 0; i < nextDelta.getBoundVars().size(); i++){
-          newEnv.addMapping(nextDelta.getBoundVars().get(i), getNthTupleChild((Tuple)rand, i+1)); //+ 1 coz tuple indexing starts at 1
-        }
+        values = Operations.bindTuple(rand, nextDelta.getBoundVars().length);
       }
+      Environment newEnv = new Environment(values, nextDelta.getCapturedValues());
       
-      processControlStack(nextDelta, newEnv);
+      enterEnvironment(nextDelta.getBody(), newEnv, tailCall);
       return;
     }
     else if(rator.getType()==ASTNodeType.YSTAR){
@@ -343,6 +227,7 @@ public class CSEMachine{
       
       Eta etaNode = new Eta();
       etaNode.setDelta((Delta)rand);
+      tieRecursiveClosure(etaNode);
       valueStack.push(etaNode);
       return;
     }
@@ -352,356 +237,241 @@ public class CSEMachine{
       valueStack.push(rand);
       valueStack.push(rator);
       valueStack.push(((Eta)rator).getDelta());
-      //push back two gammas (one for the eta and one for the delta)
-      currentControlStack.push(node);
-      currentControlStack.push(node);
+      //apply two gammas (one for the eta and one for the delta) before going on with the body,
+      //which itself is never modified
+      enterEnvironment(RULE_13_CONTROL, env, tailCall);
       return;
     }
     else if(rator.getType()==ASTNodeType.TUPLE){
-      tupleSelection((Tuple)rator, rand);
+      valueStack.push(Operations.selectTupleElement((Tuple)rator, rand)); // RULE 10
       return;
     }
-    else if(evaluateReservedIdentifiers(rator, rand, currentControlStack))
-      return;
-    else
+    
+    ASTNode result = Operations.applyBuiltin(rator, rand);
+    if(result==null)
       EvaluationError.printError(rator.getSourceLineNumber(), "Don't know how to evaluate \""+rator.getValue()+"\"");
+    valueStack.push(result);
   }
 
-  private boolean evaluateReservedIdentifiers(ASTNode rator, ASTNode rand, Stack<ASTNode> currentControlStack){
-    switch(rator.getValue()){
-      case "Isinteger":
-        checkTypeAndPushTrueOrFalse(rand, ASTNodeType.INTEGER);
-        return true;
-      case "Isstring":
-        checkTypeAndPushTrueOrFalse(rand, ASTNodeType.STRING);
-        return true;
-      case "Isdummy":
-        checkTypeAndPushTrueOrFalse(rand, ASTNodeType.DUMMY);
-        return true;
-      case "Isfunction":
-        checkTypeAndPushTrueOrFalse(rand, ASTNodeType.DELTA);
-        return true;
-      case "Istuple":
-        checkTypeAndPushTrueOrFalse(rand, ASTNodeType.TUPLE);
-        return true;
-      case "Istruthvalue":
-        if(rand.getType()==ASTNodeType.TRUE||rand.getType()==ASTNodeType.FALSE)
-          pushTrueNode();
-        else
-          pushFalseNode();
-        return true;
-      case "Stem":
-        stem(rand);
-        return true;
-      case "Stern":
-        stern(rand);
-        return true;
-      case "Conc":
-      case "conc": //typos
-        conc(rand, currentControlStack);
-        return true;
-      case "Print":
-      case "print": //typos
-        printNodeValue(rand);
-        pushDummyNode();
-        return true;
-      case "ItoS":
-        itos(rand);
-        return true;
-      case "Order":
-        order(rand);
-        return true;
-      case "Null":
-        isNullTuple(rand);
-        return true;
-      default:
-        return false;
-    }
-  }
-
-  private void checkTypeAndPushTrueOrFalse(ASTNode rand, ASTNodeType type){
-    if(rand.getType()==type)
-      pushTrueNode();
-    else
-      pushFalseNode();
-  }
-
-  private void pushTrueNode(){
-    ASTNode trueNode = new ASTNode();
-    trueNode.setType(ASTNodeType.TRUE);
-    trueNode.setValue("true");
-    valueStack.push(trueNode);
-  }
-  
-  private void pushFalseNode(){
-    ASTNode falseNode = new ASTNode();
-    falseNode.setType(ASTNodeType.FALSE);
-    falseNode.setValue("false");
-    valueStack.push(falseNode);
-  }
-
-  private void pushDummyNode(){
-    ASTNode falseNode = new ASTNode();
-    falseNode.setType(ASTNodeType.DUMMY);
-    valueStack.push(falseNode);
+  /**
+   * For "rec f = fn ...", where the delta Y* is applied to just returns a closure of its body, makes
+   * that closure once: the result of applying the delta to the eta, in an environment that binds
+   * f to the eta itself. Applying the eta then calls it like any other closure, instead of
+   * applying the delta to the eta on every call (RULE 13). The eta is still the value of f, so
+   * it prints and tests the same.
+   */
+  private void tieRecursiveClosure(Eta eta){
+    Delta delta = eta.getDelta();
+    ASTNode[] body = delta.getBody();
+    if(body.length!=1 || body[0].getType()!=ASTNodeType.DELTA || delta.getBoundVars().length!=1)
+      return;
+    Environment recursiveEnv = new Environment(new ASTNode[]{eta}, delta.getCapturedValues());
+    eta.setRecursiveClosure(((Delta)body[0]).createClosure(recursiveEnv));
   }
 
-  private void stem(ASTNode rand){
-    if(rand.getType()!=ASTNodeType.STRING)
-      EvaluationError.printError(rand.getSourceLineNumber(), "Expected a string; was given \""+rand.getValue()+"\"");
-    
-    if(rand.getValue().isEmpty())
-      rand.setValue("");
-    else
-      rand.setValue(rand.getValue().substring(0,1));
-    
-    valueStack.push(rand);
+  // RULE 1
+  private void handleVariable(Variable node){
+    ASTNode value = env.lookup(node);
+    if(value!=null)
+      valueStack.push(value);
+    else //bound to a missing tuple element, with no enclosing binding of the name
+      handleUnboundIdentifier(node.getIdentifier());
   }
 
-  private void stern(ASTNode rand){
-    if(rand.getType()!=ASTNodeType.STRING)
-      EvaluationError.printError(rand.getSourceLineNumber(), "Expected a string; was given \""+rand.getValue()+"\"");
-    
-    if(rand.getValue().isEmpty() || rand.getValue().length()==1)
-      rand.setValue("");
-    else
-      rand.setValue(rand.getValue().substring(1));
-    
-    valueStack.push(rand);
+  private void handleUnboundIdentifier(ASTNode node){
+    valueStack.push(Operations.unboundIdentifier(node));
   }
 
-  private void conc(ASTNode rand1, Stack<ASTNode> currentControlStack){
-    currentControlStack.pop();
-    ASTNode rand2 = valueStack.pop();
-    if(rand1.getType()!=ASTNodeType.STRING || rand2.getType()!=ASTNodeType.STRING)
-      EvaluationError.printError(rand1.getSourceLineNumber(), "Expected two strings; was given \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
-
-    ASTNode result = new ASTNode();
-    result.setType(ASTNodeType.STRING);
-    result.setValue(rand1.getValue()+rand2.getValue());
-    
-    valueStack.push(result);
+  //RULE 9
+  private void createTuple(Tau node){
+    int numChildren = node.getNumElements();
+    ASTNode[] elements = new ASTNode[numChildren];
+    for(int i=0;i<numChildren;++i)
+      elements[i] = valueStack.pop();
+    valueStack.push(Tuple.of(elements));
   }
 
-  private void itos(ASTNode rand){
-    if(rand.getType()!=ASTNodeType.INTEGER)
-      EvaluationError.printError(rand.getSourceLineNumber(), "Expected an integer; was given \""+rand.getValue()+"\"");
-    
-    rand.setType(ASTNodeType.STRING); //all values are stored internally as strings, so nothing else to do
-    valueStack.push(rand);
+  // RULE 8
+  private void handleBeta(Beta node){
+    if(!Operations.testCondition(valueStack.pop()))
+      pc = node.getElseAddress(); //the then part follows the Beta
   }
 
-  private void order(ASTNode rand){
-    if(rand.getType()!=ASTNodeType.TUPLE)
-      EvaluationError.printError(rand.getSourceLineNumber(), "Expected a tuple; was given \""+rand.getValue()+"\"");
+}
 
-    ASTNode result = new ASTNode();
-    result.setType(ASTNodeType.INTEGER);
-    result.setValue(Integer.toString(getNumChildren(rand)));
-    
-    valueStack.push(result);
+/**
+ * A reference to a bound variable in a delta body. The CSE machine finds it by index, among the
+ * variables of the current call or among those the closure called had captured. The bytecode
+ * compiler uses the other address: the number of environments to go up from the current one to the
+ * one that binds it, in a chain of environments each linked to that of the enclosing delta, and
+ * its slot there.
+ *
+ * A variable bound to an element of a tuple has no value if the tuple is too short. It then has
+ * the value of the outer variable, the next binding of the name out, or if there is none, it is
+ * the builtin function of that name.
+ */
+class Variable extends ASTNode{
+  private final ASTNode identifier;
+  private final boolean captured;
+  private final int index;
+  private final int depth;
+  private final int slot;
+  private final Variable outer; //null unless bound to a tuple element, and another binding encloses it
+
+  public Variable(ASTNode identifier, boolean captured, int index, int depth, int slot, Variable outer){
+    setType(ASTNodeType.VARIABLE);
+    setValue(identifier.getValue());
+    setSymbol(identifier.getSymbol());
+    setSourceLineNumber(identifier.getSourceLineNumber());
+    this.identifier = identifier;
+    this.captured = captured;
+    this.index = index;
+    this.depth = depth;
+    this.slot = slot;
+    this.outer = outer;
   }
 
-  private void isNullTuple(ASTNode rand){
-    if(rand.getType()!=ASTNodeType.TUPLE)
-      EvaluationError.printError(rand.getSourceLineNumber(), "Expected a tuple; was given \""+rand.getValue()+"\"");
-
-    if(getNumChildren(rand)==0)
-      pushTrueNode();
-    else
-      pushFalseNode();
+  public ASTNode getIdentifier(){
+    return identifier;
   }
 
-  // RULE 10
-  private void tupleSelection(Tuple rator, ASTNode rand){
-    if(rand.getType()!=ASTNodeType.INTEGER)
-      EvaluationError.printError(rand.getSourceLineNumber(), "Non-integer tuple selection with \""+rand.getValue()+"\"");
-
-    ASTNode result = getNthTupleChild(rator, Integer.parseInt(rand.getValue()));
-    if(result==null)
-      EvaluationError.printError(rand.getSourceLineNumber(), "Tuple selection index "+rand.getValue()+" out of bounds");
-
-    valueStack.push(result);
+  public boolean isCaptured(){
+    return captured;
   }
 
-  /**
-   * Get the nth element of the tuple. Note that n starts from 1 and NOT 0.
-   * @param tupleNode
-   * @param n n starts from 1 and NOT 0.
-   * @return
-   */
-  private ASTNode getNthTupleChild(Tuple tupleNode, int n){
-    ASTNode childNode = tupleNode.getChild();
-    for(int i=1;i<n;++i){ //tuple selection index starts at 1
-      if(childNode==null)
-        break;
-      childNode = childNode.getSibling();
-    }
-    return childNode;
+  public int getIndex(){
+    return index;
   }
 
-  private void handleIdentifiers(ASTNode node, Environment currentEnv){
-    if(currentEnv.lookup(node.getValue())!=null) // RULE 1
-      valueStack.push(currentEnv.lookup(node.getValue()));
-    else if(isReservedIdentifier(node.getValue()))
-      valueStack.push(node);
-    else
-      EvaluationError.printError(node.getSourceLineNumber(), "Undeclared identifier \""+node.getValue()+"\"");
+  public int getDepth(){
+    return depth;
   }
 
-  //RULE 9
-  private void createTuple(ASTNode node){
-    int numChildren = getNumChildren(node);
-    Tuple tupleNode = new Tuple();
-    if(numChildren==0){
-      valueStack.push(tupleNode);
-      return;
-    }
-
-    ASTNode childNode = null, tempNode = null;
-    for(int i=0;i<numChildren;++i){
-      if(childNode==null)
-        childNode = valueStack.pop();
-      else if(tempNode==null){
-        tempNode = valueStack.pop();
-        childNode.setSibling(tempNode);
-      }
-      else{
-        tempNode.setSibling(valueStack.pop());
-        tempNode = tempNode.getSibling();
-      }
-    }
-    tempNode.setSibling(null);
-    tupleNode.setChild(childNode);
-    valueStack.push(tupleNode);
+  public int getSlot(){
+    return slot;
   }
 
-  // RULE 8
-  private void handleBeta(Beta node, Stack<ASTNode> currentControlStack){
-    ASTNode conditionResultNode = valueStack.pop();
-
-    if(conditionResultNode.getType()!=ASTNodeType.TRUE && conditionResultNode.getType()!=ASTNodeType.FALSE)
-      EvaluationError.printError(conditionResultNode.getSourceLineNumber(), "Expecting a truthvalue; found \""+conditionResultNode.getValue()+"\"");
-
-    if(conditionResultNode.getType()==ASTNodeType.TRUE)
-      currentControlStack.addAll(node.getThenBody());
-    else
-      currentControlStack.addAll(node.getElseBody());
+  public Variable getOuter(){
+    return outer;
   }
-
-  private int getNumChildren(ASTNode node){
-    int numChildren = 0;
-    ASTNode childNode = node.getChild();
-    while(childNode!=null){
-      numChildren++;
-      childNode = childNode.getSibling();
-    }
-    return numChildren;
-  }
-  
-  private void printNodeValue(ASTNode rand){
-    String evaluationResult = rand.getValue();
-    evaluationResult = evaluationResult.replace("\\t", "\t");
-    evaluationResult = evaluationResult.replace("\\n", "\n");
-    System.out.print(evaluationResult);
-  }
-
-  // Note how this list is different from the one defined in Scanner.java
-  private boolean isReservedIdentifier(String value){
-    switch(value){
-      case "Isinteger":
-      case "Isstring":
-      case "Istuple":
-      case "Isdummy":
-      case "Istruthvalue":
-      case "Isfunction":
-      case "ItoS":
-      case "Order":
-      case "Conc":
-      case "conc": //typos
-      case "Stern":
-      case "Stem":
-      case "Null":
-      case "Print":
-      case "print": //typos
-      case "neg":
-        return true;
-    }
-    return false;
-  }
-
 }
 
+/**
+ * Conditional jump: the then part of a conditional follows its Beta in the delta body, and the Beta
+ * jumps to the else part if the condition is false.
+ */
 class Beta extends ASTNode{
-  private Stack<ASTNode> thenBody;
-  private Stack<ASTNode> elseBody;
+  private int elseAddress;
   
   public Beta(){
     setType(ASTNodeType.BETA);
-    thenBody = new Stack<ASTNode>();
-    elseBody = new Stack<ASTNode>();
   }
   
-  public Beta accept(NodeCopier nodeCopier){
-    return nodeCopier.copy(this);
+  public int getElseAddress(){
+    return elseAddress;
   }
 
-  public Stack<ASTNode> getThenBody(){
-    return thenBody;
+  public void setElseAddress(int elseAddress){
+    this.elseAddress = elseAddress;
   }
+  
+}
 
-  public Stack<ASTNode> getElseBody(){
-    return elseBody;
+/**
+ * Unconditional jump, from the end of the then part of a conditional past its else part.
+ */
+class Jump extends ASTNode{
+  private int address;
+  
+  public Jump(){
+    setType(ASTNodeType.JUMP);
+  }
+  
+  public int getAddress(){
+    return address;
   }
 
-  public void setThenBody(Stack<ASTNode> thenBody){
-    this.thenBody = thenBody;
+  public void setAddress(int address){
+    this.address = address;
   }
+  
+}
 
-  public void setElseBody(Stack<ASTNode> elseBody){
-    this.elseBody = elseBody;
+/**
+ * RULE 9: makes a tuple of the given number of values on the stack, the first element on top.
+ */
+class Tau extends ASTNode{
+  private final int numElements;
+  
+  public Tau(int numElements, int sourceLineNumber){
+    setType(ASTNodeType.TAU);
+    setSourceLineNumber(sourceLineNumber);
+    this.numElements = numElements;
+  }
+  
+  public int getNumElements(){
+    return numElements;
   }
   
 }
 
 class Delta extends ASTNode{
-  private List<String> boundVars;
-  private Environment linkedEnv; //environment in effect when this Delta was pushed on to the value stack
-  private Stack<ASTNode> body;
+  private static final ASTNode[] NO_VALUES = new ASTNode[0];
+  private int[] boundVars; //SymbolTable ids
+  //the free variables of the body, as found in the environment the delta is evaluated in
+  private Variable[] captures;
+  private ASTNode[] capturedValues; //of a closure: the values of the captures when it was created
+  private ASTNode[] body; //instructions in execution order; shared by all closures of this delta and never modified
   private int index;
   
   public Delta(){
     setType(ASTNodeType.DELTA);
-    boundVars = new ArrayList<String>();
+    boundVars = new int[0];
+    captures = new Variable[0];
   }
   
-  public Delta accept(NodeCopier nodeCopier){
-    return nodeCopier.copy(this);
+  /**
+   * RULE 2: a Delta in a body is only a template. Evaluating it yields a new Delta that shares
+   * the body and bound variables and holds the values of its free variables in the current
+   * environment, so closures are never modified once created and keep nothing else alive.
+   */
+  public Delta createClosure(Environment env){
+    ASTNode[] capturedValues = captures.length==0? NO_VALUES : new ASTNode[captures.length];
+    for(int i = 0; i < captures.length; i++)
+      capturedValues[i] = env.lookup(captures[i]);
+    Delta closure = new Delta();
+    closure.boundVars = boundVars;
+    closure.body = body;
+    closure.index = index;
+    closure.capturedValues = capturedValues;
+    closure.setSourceLineNumber(getSourceLineNumber());
+    return closure;
   }
   
   //used if the program evaluation results in a partial application
   @Override
   public String getValue(){
-    return "[lambda closure: "+boundVars.get(0)+": "+index+"]";
+    return "[lambda closure: "+SymbolTable.getName(boundVars[0])+": "+index+"]";
   }
 
-  public List<String> getBoundVars(){
+  public int[] getBoundVars(){
     return boundVars;
   }
   
-  public void addBoundVars(String boundVar){
-    boundVars.add(boundVar);
+  public void addBoundVars(int boundVar){
+    boundVars = Arrays.copyOf(boundVars, boundVars.length+1);
+    boundVars[boundVars.length-1] = boundVar;
   }
   
-  public void setBoundVars(List<String> boundVars){
+  public void setBoundVars(int[] boundVars){
     this.boundVars = boundVars;
   }
   
-  public Stack<ASTNode> getBody(){
+  public ASTNode[] getBody(){
     return body;
   }
   
-  public void setBody(Stack<ASTNode> body){
+  public void setBody(ASTNode[] body){
     this.body = body;
   }
   
@@ -713,62 +483,64 @@ class Delta extends ASTNode{
     this.index = index;
   }
 
-  public Environment getLinkedEnv(){
-    return linkedEnv;
+  public Variable[] getCaptures(){
+    return captures;
   }
 
-  public void setLinkedEnv(Environment linkedEnv){
-    this.linkedEnv = linkedEnv;
+  /**
+   * Returns the index among the captures of the one with the given symbol, or -1.
+   */
+  public int findCapture(int symbol){
+    for(int i = 0; i < captures.length; i++){
+      if(captures[i].getSymbol()==symbol)
+        return i;
+    }
+    return -1;
   }
-}
 
-
-class Environment{
-  private Environment parent;
-  private Map<String, ASTNode> nameValueMap;
-  
-  public Environment(){
-    nameValueMap = new HashMap<String, ASTNode>();
+  public int addCapture(Variable capture){
+    captures = Arrays.copyOf(captures, captures.length+1);
+    captures[captures.length-1] = capture;
+    return captures.length-1;
   }
 
-  public Environment getParent(){
-    return parent;
+  public ASTNode[] getCapturedValues(){
+    return capturedValues;
   }
+}
+
 
-  public void setParent(Environment parent){
-    this.parent = parent;
+/**
+ * The values of the variables bound by one call of a delta, in the order of its bound variables,
+ * and the values the closure called had captured. Variables are looked up by the addresses
+ * AST.createDeltas() resolves them to; see {@link Variable}.
+ */
+class Environment{
+  private final ASTNode[] values;
+  private final ASTNode[] capturedValues;
+  
+  public Environment(ASTNode[] values, ASTNode[] capturedValues){
+    this.values = values;
+    this.capturedValues = capturedValues;
   }
   
   /**
-   * Tries to find the binding of the given key in the mappings of this Environment's
-   * inheritance hierarchy, starting with the Environment this method is invoked on.
-   * 
-   * @param key key the mapping of which to find
-   * @return ASTNode that corresponds to the mapping of the key passed in as an argument
-   *         or null if no mapping was found
+   * Returns the value of the variable, or null if it is bound to a missing tuple element and so is
+   * every enclosing binding of the name. A captured value has already been looked up this way.
    */
-  public ASTNode lookup(String key){
-    ASTNode retValue = null;
-    Map<String, ASTNode> map = nameValueMap;
-    
-    retValue = map.get(key);
-    
-    if(retValue!=null)
-      return retValue.accept(new NodeCopier());
-    
-    if(parent!=null)
-      return parent.lookup(key);
-    else
-      return null;
-  }
-  
-  public void addMapping(String key, ASTNode value){
-    nameValueMap.put(key, value);
+  public ASTNode lookup(Variable variable){
+    if(variable.isCaptured())
+      return capturedValues[variable.getIndex()];
+    ASTNode value = values[variable.getIndex()]; //values are immutable, so no copy is needed
+    if(value==null && variable.getOuter()!=null) //keep looking in the enclosing bindings
+      return lookup(variable.getOuter());
+    return value;
   }
 }
 
 class Eta extends ASTNode{
   private Delta delta;
+  private Delta recursiveClosure; //what applying the delta to this eta gives, if known; see RULE 12
   
   public Eta(){
     setType(ASTNodeType.ETA);
@@ -777,12 +549,9 @@ class Eta extends ASTNode{
   //used if the program evaluation results in a partial application
   @Override
   public String getValue(){
-    return "[eta closure: "+delta.getBoundVars().get(0)+": "+delta.getIndex()+"]";
+    return "[eta closure: "+SymbolTable.getName(delta.getBoundVars()[0])+": "+delta.getIndex()+"]";
   }
   
-  public Eta accept(NodeCopier nodeCopier){
-    return nodeCopier.copy(this);
-  }
 
   public Delta getDelta(){
     return delta;
@@ -791,10 +560,224 @@ class Eta extends ASTNode{
   public void setDelta(Delta delta){
     this.delta = delta;
   }
+
+  public Delta getRecursiveClosure(){
+    return recursiveClosure;
+  }
+
+  public void setRecursiveClosure(Delta recursiveClosure){
+    this.recursiveClosure = recursiveClosure;
+  }
   
 }
 
 
+/**
+ * An integer value, held in an int. Small values are cached and shared; see valueOf().
+ */
+class IntegerValue extends ASTNode{
+  private static final int CACHE_LOW = -128;
+  private static final int CACHE_HIGH = 1023;
+  private static final IntegerValue[] cache = new IntegerValue[CACHE_HIGH-CACHE_LOW+1];
+  
+  static{
+    for(int i = 0; i < cache.length; i++)
+      cache[i] = new IntegerValue(CACHE_LOW+i);
+  }
+  
+  private final int intValue;
+  
+  public IntegerValue(int intValue){
+    setType(ASTNodeType.INTEGER);
+    this.intValue = intValue;
+  }
+  
+  /**
+   * Returns the IntegerValue for the given int, shared if it is a small one.
+   */
+  public static IntegerValue valueOf(int intValue){
+    if(intValue>=CACHE_LOW && intValue<=CACHE_HIGH)
+      return cache[intValue-CACHE_LOW];
+    return new IntegerValue(intValue);
+  }
+  
+  public int getIntValue(){
+    return intValue;
+  }
+  
+  @Override
+  public String getValue(){
+    return Integer.toString(intValue);
+  }
+  
+}
+
+/**
+ * true or false. The machine only ever pushes the two shared instances.
+ */
+class TruthValue extends ASTNode{
+  public static final TruthValue TRUE = new TruthValue(true);
+  public static final TruthValue FALSE = new TruthValue(false);
+  
+  public TruthValue(boolean truthValue){
+    setType(truthValue? ASTNodeType.TRUE : ASTNodeType.FALSE);
+    setValue(truthValue? "true" : "false");
+  }
+  
+  public static TruthValue valueOf(boolean truthValue){
+    return truthValue? TRUE : FALSE;
+  }
+  
+}
+
+/**
+ * A string value. A flat string is a slice (offset and length) of a char array that may be
+ * shared with other strings, so Stem and Stern take constant time. Conc takes constant time
+ * too: it makes a rope node holding its two operands, which is flattened into a new array the
+ * first time its characters are needed (Stem, Stern, comparison or printing).
+ */
+class StringValue extends ASTNode{
+  public static final StringValue EMPTY = new StringValue("");
+  
+  private char[] chars; //null while this is an unflattened rope
+  private int offset;
+  private int length;
+  private StringValue left, right; //the operands of Conc until flattened
+  private String string; //cached result of getValue()
+  
+  public StringValue(String string){
+    setType(ASTNodeType.STRING);
+    this.chars = string.toCharArray();
+    this.length = chars.length;
+    this.string = string;
+  }
+  
+  private StringValue(char[] chars, int offset, int length){
+    setType(ASTNodeType.STRING);
+    this.chars = chars;
+    this.offset = offset;
+    this.length = length;
+  }
+  
+  private StringValue(StringValue left, StringValue right){
+    setType(ASTNodeType.STRING);
+    this.left = left;
+    this.right = right;
+    this.length = left.length+right.length;
+  }
+  
+  public static StringValue concat(StringValue left, StringValue right){
+    if(left.length==0)
+      return right;
+    if(right.length==0)
+      return left;
+    return new StringValue(left, right);
+  }
+  
+  public int length(){
+    return length;
+  }
+  
+  public StringValue stem(){
+    if(length==0)
+      return EMPTY;
+    flatten();
+    return new StringValue(chars, offset, 1);
+  }
+  
+  public StringValue stern(){
+    if(length<=1)
+      return EMPTY;
+    flatten();
+    return new StringValue(chars, offset+1, length-1);
+  }
+  
+  public boolean contentEquals(StringValue other){
+    if(length!=other.length)
+      return false;
+    flatten();
+    other.flatten();
+    for(int i = 0; i < length; i++){
+      if(chars[offset+i]!=other.chars[other.offset+i])
+        return false;
+    }
+    return true;
+  }
+  
+  @Override
+  public String getValue(){
+    if(string==null){
+      flatten();
+      string = new String(chars, offset, length);
+    }
+    return string;
+  }
+  
+  /**
+   * Copies the leaves of the rope into one array, walking the rope with an explicit stack
+   * since a string built up by Conc in a loop is a very deep rope.
+   */
+  private void flatten(){
+    if(chars!=null)
+      return;
+    char[] flat = new char[length];
+    int position = 0;
+    ArrayDeque<StringValue> pending = new ArrayDeque<StringValue>();
+    pending.push(this);
+    while(!pending.isEmpty()){
+      StringValue node = pending.pop();
+      if(node.chars!=null){
+        System.arraycopy(node.chars, node.offset, flat, position, node.length);
+        position += node.length;
+      }
+      else{
+        pending.push(node.right);
+        pending.push(node.left);
+      }
+    }
+    chars = flat;
+    offset = 0;
+    left = null;
+    right = null;
+  }
+}
+
+/**
+ * Conc applied to its first argument: a builtin function that concatenates that string and the
+ * one it is applied to.
+ */
+class PartialConc extends ASTNode{
+  private final ASTNode first;
+  
+  public PartialConc(ASTNode first){
+    setType(ASTNodeType.IDENTIFIER);
+    setSymbol(SymbolTable.NONE);
+    setSourceLineNumber(first.getSourceLineNumber());
+    this.first = first;
+  }
+  
+  public ASTNode getFirst(){
+    return first;
+  }
+  
+  //used if the program evaluation results in a partial application
+  @Override
+  public String getValue(){
+    return "[partial application: Conc: "+first.getValue()+"]";
+  }
+}
+
+class DummyValue extends ASTNode{
+  public static final DummyValue DUMMY = new DummyValue("dummy");
+  //what Print returns: a dummy with no value, which prints as null
+  public static final DummyValue PRINT_RESULT = new DummyValue(null);
+  
+  public DummyValue(String value){
+    setType(ASTNodeType.DUMMY);
+    setValue(value);
+  }
+}
+
 class EvaluationError{
   
   public static void printError(int sourceLineNumber, String message){
@@ -805,136 +788,138 @@ class EvaluationError{
 }
 
 /**
- * The CopyNode class is responsible for copying AST nodes and their children.
- * It provides methods to copy specific types of AST nodes.
+ * A tuple value, held as a persistent vector: a trie of 32-element nodes plus a tail array
+ * holding the last (up to) 32 elements. Selection, Order and Null take (effectively) constant
+ * time, and append() returns a new tuple that shares all of this one's nodes except the tail
+ * and at most one path of the trie, which is what makes repeated aug cheap. Like all values,
+ * a Tuple is never modified once created.
  */
-
-class NodeCopier{
+class Tuple extends ASTNode{
+  private static final int BITS = 5;
+  private static final int WIDTH = 1<<BITS;
+  private static final int MASK = WIDTH-1;
+  private static final Object[] EMPTY_NODE = new Object[WIDTH];
   
-  public ASTNode copy(ASTNode astNode){
-    ASTNode copy = new ASTNode();
-    if(astNode.getChild()!=null) {
-      copy.setChild(astNode.getChild().accept(this));
-    }
-    if(astNode.getSibling()!=null)
-      copy.setSibling(astNode.getSibling().accept(this));
-    copy.setType(astNode.getType());
-    copy.setValue(astNode.getValue());
-    copy.setSourceLineNumber(astNode.getSourceLineNumber());
-    return copy;
-  }
-  
-  public Beta copy(Beta beta){
-    Beta copy = new Beta();
-    if(beta.getChild()!=null) {
-      copy.setChild(beta.getChild().accept(this));
-    }
-    if(beta.getSibling()!=null) {
-      copy.setSibling(beta.getSibling().accept(this));
-    }
-    copy.setType(beta.getType());
-    copy.setValue(beta.getValue());
-    copy.setSourceLineNumber(beta.getSourceLineNumber());
-    
-    Stack<ASTNode> thenBodyCopy = new Stack<ASTNode>();
-    for(ASTNode thenBodyElement: beta.getThenBody()){
-      thenBodyCopy.add(thenBodyElement.accept(this));
-    }
-    copy.setThenBody(thenBodyCopy);
+  public static final Tuple NIL = new Tuple(0, BITS, EMPTY_NODE, new Object[0]); //the empty tuple
+  
+  private final int size;
+  private final int shift; //BITS times the number of levels of the trie below the root
+  private final Object[] root; //inner nodes hold Object[] children, leaves hold the elements
+  private final Object[] tail;
+  
+  private Tuple(int size, int shift, Object[] root, Object[] tail){
+    setType(ASTNodeType.TUPLE);
+    this.size = size;
+    this.shift = shift;
+    this.root = root;
+    this.tail = tail;
+  }
+  
+  /**
+   * Returns the tuple of the given elements.
+   */
+  public static Tuple of(ASTNode[] elements){
+    int size = elements.length;
+    if(size==0)
+      return NIL;
+    int tailOffset = ((size-1)>>>BITS)<<BITS;
+    Object[] tail = Arrays.copyOfRange(elements, tailOffset, size, Object[].class);
     
-    Stack<ASTNode> elseBodyCopy = new Stack<ASTNode>();
-    for(ASTNode elseBodyElement: beta.getElseBody()){
-      elseBodyCopy.add(elseBodyElement.accept(this));
+    //full leaves for everything before the tail, then the levels above them
+    Object[][] nodes = new Object[tailOffset>>>BITS][];
+    for(int i = 0; i < nodes.length; i++)
+      nodes[i] = Arrays.copyOfRange(elements, i<<BITS, (i+1)<<BITS, Object[].class);
+    int shift = BITS;
+    while(nodes.length>WIDTH){
+      Object[][] parents = new Object[(nodes.length+MASK)>>>BITS][];
+      for(int i = 0; i < parents.length; i++){
+        parents[i] = new Object[WIDTH];
+        System.arraycopy(nodes, i<<BITS, parents[i], 0, Math.min(WIDTH, nodes.length-(i<<BITS)));
+      }
+      nodes = parents;
+      shift += BITS;
     }
-    copy.setElseBody(elseBodyCopy);
-    
-    return copy;
+    Object[] root = new Object[WIDTH];
+    System.arraycopy(nodes, 0, root, 0, nodes.length);
+    return new Tuple(size, shift, root, tail);
   }
   
-  public Eta copy(Eta eta){
-    Eta copy = new Eta();
-    if(eta.getChild()!=null) {
-      copy.setChild(eta.getChild().accept(this));
-    }
-    if(eta.getSibling()!=null) {
-      copy.setSibling(eta.getSibling().accept(this));
-    }
-    copy.setType(eta.getType());
-    copy.setValue(eta.getValue());
-    copy.setSourceLineNumber(eta.getSourceLineNumber());
-    
-    copy.setDelta(eta.getDelta().accept(this));
-    
-    return copy;
+  public int size(){
+    return size;
   }
   
-  public Delta copy(Delta delta){
-    Delta copy = new Delta();
-    if(delta.getChild()!=null) {
-      copy.setChild(delta.getChild().accept(this));
-    }
-    if(delta.getSibling()!=null) {
-      copy.setSibling(delta.getSibling().accept(this));
+  private int tailOffset(){
+    return size<WIDTH? 0 : ((size-1)>>>BITS)<<BITS;
+  }
+  
+  /**
+   * Returns the element at the given index. Note that index starts from 0, unlike tuple selection.
+   */
+  public ASTNode getElement(int index){
+    if(index>=tailOffset())
+      return (ASTNode)tail[index-tailOffset()];
+    Object[] node = root;
+    for(int level = shift; level > 0; level -= BITS)
+      node = (Object[])node[(index>>>level) & MASK];
+    return (ASTNode)node[index & MASK];
+  }
+  
+  /**
+   * Returns a new tuple with the elements of this one followed by the given element.
+   */
+  public Tuple append(ASTNode element){
+    //room in the tail
+    if(size-tailOffset()<WIDTH){
+      Object[] newTail = Arrays.copyOf(tail, tail.length+1);
+      newTail[tail.length] = element;
+      return new Tuple(size+1, shift, root, newTail);
     }
-    copy.setType(delta.getType());
-    copy.setValue(delta.getValue());
-    copy.setIndex(delta.getIndex());
-    copy.setSourceLineNumber(delta.getSourceLineNumber());
     
-    Stack<ASTNode> bodyCopy = new Stack<ASTNode>();
-    for(ASTNode bodyElement: delta.getBody()){
-      bodyCopy.add(bodyElement.accept(this));
+    //the tail is full: push it into the trie and start a new one
+    Object[] newRoot;
+    int newShift = shift;
+    if((size>>>BITS)>(1<<shift)){ //the trie is full: add a level
+      newRoot = new Object[WIDTH];
+      newRoot[0] = root;
+      newRoot[1] = newPath(shift, tail);
+      newShift += BITS;
     }
-    copy.setBody(bodyCopy);
-    
-    List<String> boundVarsCopy = new ArrayList<String>();
-    boundVarsCopy.addAll(delta.getBoundVars());
-    copy.setBoundVars(boundVarsCopy);
-    
-    copy.setLinkedEnv(delta.getLinkedEnv());
-    
-    return copy;
+    else
+      newRoot = pushTail(shift, root, tail);
+    return new Tuple(size+1, newShift, newRoot, new Object[]{element});
   }
   
-  public Tuple copy(Tuple tuple){
-    Tuple copy = new Tuple();
-    if(tuple.getChild()!=null) {
-      copy.setChild(tuple.getChild().accept(this));
-    }
-    if(tuple.getSibling()!=null) {
-      copy.setSibling(tuple.getSibling().accept(this));
+  private Object[] pushTail(int level, Object[] parent, Object[] tailNode){
+    int subIndex = ((size-1)>>>level) & MASK;
+    Object[] result = parent.clone();
+    if(level==BITS)
+      result[subIndex] = tailNode;
+    else{
+      Object[] child = (Object[])parent[subIndex];
+      result[subIndex] = child!=null? pushTail(level-BITS, child, tailNode) : newPath(level-BITS, tailNode);
     }
-    copy.setType(tuple.getType());
-    copy.setValue(tuple.getValue());
-    copy.setSourceLineNumber(tuple.getSourceLineNumber());
-    return copy;
+    return result;
   }
-}
-
-class Tuple extends ASTNode{
   
-  public Tuple(){
-    setType(ASTNodeType.TUPLE);
+  private static Object[] newPath(int level, Object[] node){
+    if(level==0)
+      return node;
+    Object[] path = new Object[WIDTH];
+    path[0] = newPath(level-BITS, node);
+    return path;
   }
   
   @Override
   public String getValue(){
-    ASTNode childNode = getChild();
-    if(childNode==null) {
+    if(size==0) {
       return "nil";
     }
     
     StringBuilder sb = new StringBuilder("(");
-    while(childNode.getSibling()!=null){
-      sb.append(childNode.getValue()).append(", ");
-      childNode = childNode.getSibling();
-    }
-    sb.append(childNode.getValue()).append(")");
+    for(int i = 0; i < size-1; i++)
+      sb.append(getElement(i).getValue()).append(", ");
+    sb.append(getElement(size-1).getValue()).append(")");
     return sb.toString();
   }
   
-  public Tuple accept(NodeCopier nodeCopier){
-    return nodeCopier.copy(this);
-  }
-  
 }
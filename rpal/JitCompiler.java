@@ -0,0 +1,552 @@
+package rpal;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import static rpal.BytecodeCompiler.*;
+
+/**
+ * Compiles the code of a {@link CompiledFunction} to a JVM method, so that HotSpot can optimize
+ * (and inline into each other) the RPAL functions a program spends its time in. The
+ * {@link BytecodeMachine} hands a function over once it has been called often enough.
+ *
+ * Each function becomes a hidden class in this package, named after the function and the line it
+ * is defined on (rpal.fib_line3, say), with a static method named after the function (fn_fib, so
+ * that it cannot clash with the other methods of the class) holding the code and a run() method
+ * implementing {@link CompiledCode} that calls it. The method keeps the values of the bytecode
+ * machine's stack on the JVM operand stack, so every opcode is a few JVM instructions or a call to
+ * one of the helpers in {@link JitRuntime}. Closure calls go through
+ * {@link BytecodeMachine#apply}, which runs the callee's compiled code if it has any and interprets
+ * it otherwise. The class names the RPAL file as its source file, so that profilers and stack
+ * traces (which list hidden classes only with the diagnostic option -XX:+ShowHiddenFrames) point
+ * at the program as well as the function.
+ *
+ * The class files are version 49, which need no stack map frames. Anything that cannot be compiled
+ * (a method too big for 16-bit branch offsets, or a class the JVM rejects) leaves the function to the
+ * interpreter.
+ */
+class JitCompiler{
+  private static final String ASTNODE = "rpal/ASTNode";
+  private static final String FRAME = "rpal/BytecodeMachine$Frame";
+  private static final String JIT_RUNTIME = "rpal/JitRuntime";
+  private static final String OPERATIONS = "rpal/Operations";
+  private static final String RUN_DESCRIPTOR = "(L"+FRAME+";[L"+ASTNODE+";Lrpal/BytecodeMachine;)L"+ASTNODE+";";
+  private static final String VALUE_DESCRIPTOR = "(L"+ASTNODE+";)L"+ASTNODE+";";
+  private static final String BINARY_DESCRIPTOR = "(L"+ASTNODE+";L"+ASTNODE+";)L"+ASTNODE+";";
+
+  //locals of the compiled method
+  private static final int FRAME_LOCAL = 0;
+  private static final int CONSTANTS_LOCAL = 1;
+  private static final int MACHINE_LOCAL = 2;
+  private static final int TEMP_LOCAL = 3;
+
+  //JVM opcodes
+  private static final int ICONST_0 = 0x03;
+  private static final int BIPUSH = 0x10;
+  private static final int SIPUSH = 0x11;
+  private static final int LDC_W = 0x13;
+  private static final int ALOAD_0 = 0x2a;
+  private static final int AALOAD = 0x32;
+  private static final int ASTORE_0 = 0x4b;
+  private static final int AASTORE = 0x53;
+  private static final int POP = 0x57;
+  private static final int SWAP = 0x5f;
+  private static final int IFEQ = 0x99;
+  private static final int GOTO = 0xa7;
+  private static final int ARETURN = 0xb0;
+  private static final int RETURN_VOID = 0xb1;
+  private static final int GETSTATIC = 0xb2;
+  private static final int GETFIELD = 0xb4;
+  private static final int INVOKESPECIAL = 0xb7;
+  private static final int INVOKESTATIC = 0xb8;
+  private static final int ANEWARRAY = 0xbd;
+
+  private static final int ACC_PUBLIC = 0x0001;
+  private static final int ACC_STATIC = 0x0008;
+  private static final int ACC_FINAL = 0x0010;
+  private static final int ACC_SUPER = 0x0020;
+
+  private final MethodHandles.Lookup lookup = MethodHandles.lookup();
+  private final String sourceFile; //the name of the RPAL file, or null if not known
+
+  public JitCompiler(String sourceFile){
+    this.sourceFile = sourceFile;
+  }
+
+  /**
+   * Compiles the function and sets its JIT code, or marks it as failed.
+   */
+  public void compile(CompiledFunction function){
+    try{
+      byte[] classFile = generateClass(function);
+      if(classFile!=null){
+        Class<?> compiledClass = lookup.defineHiddenClass(classFile, true).lookupClass();
+        CompiledCode code = (CompiledCode)lookup.findConstructor(compiledClass, MethodType.methodType(void.class)).invoke();
+        function.setJitCode(code);
+        return;
+      }
+    }catch(LinkageError e){
+      //rejected by the JVM; interpret the function instead
+    }catch(Throwable e){
+      throw new RuntimeException("Could not load the compiled code of "+function.getName(), e);
+    }
+    function.setJitFailed(true);
+  }
+
+  private byte[] generateClass(CompiledFunction function){
+    ClassFile classFile = new ClassFile();
+    String methodName = "fn_"+function.getName();
+    String className = "rpal/"+function.getName()+"_line"+function.getSourceLineNumber();
+    int thisClass = classFile.classRef(className);
+
+    byte[] code = generateCode(function, classFile);
+    if(code==null)
+      return null;
+
+    Bytes constructor = new Bytes();
+    constructor.u1(ALOAD_0);
+    constructor.u1(INVOKESPECIAL);
+    constructor.u2(classFile.methodRef("java/lang/Object", "<init>", "()V"));
+    constructor.u1(RETURN_VOID);
+
+    Bytes run = new Bytes();
+    run.u1(ALOAD_0+1);
+    run.u1(ALOAD_0+2);
+    run.u1(ALOAD_0+3);
+    run.u1(INVOKESTATIC);
+    run.u2(classFile.methodRef(className, methodName, RUN_DESCRIPTOR));
+    run.u1(ARETURN);
+
+    Bytes methods = new Bytes();
+    methods.u2(3);
+    classFile.method(methods, ACC_PUBLIC, "<init>", "()V", 1, 1, constructor.toArray());
+    classFile.method(methods, ACC_PUBLIC, "run", RUN_DESCRIPTOR, 3, 4, run.toArray());
+    classFile.method(methods, ACC_PUBLIC|ACC_STATIC, methodName, RUN_DESCRIPTOR, function.getMaxStack()+4, 4, code);
+
+    int superClass = classFile.classRef("java/lang/Object");
+    int compiledCode = classFile.classRef("rpal/CompiledCode");
+    Bytes attributes = new Bytes();
+    if(sourceFile!=null){
+      attributes.u2(1);
+      attributes.u2(classFile.utf8("SourceFile"));
+      attributes.u4(2);
+      attributes.u2(classFile.utf8(sourceFile));
+    }
+    else
+      attributes.u2(0);
+
+    Bytes out = new Bytes();
+    out.u4(0xcafebabe);
+    out.u2(0);
+    out.u2(49);
+    classFile.writeConstantPool(out);
+    out.u2(ACC_FINAL|ACC_SUPER);
+    out.u2(thisClass);
+    out.u2(superClass);
+    out.u2(1);
+    out.u2(compiledCode);
+    out.u2(0); //fields
+    out.bytes(methods.toArray());
+    out.bytes(attributes.toArray());
+    return out.toArray();
+  }
+
+  /**
+   * Returns the JVM code of the function, or null if it cannot be compiled.
+   */
+  private byte[] generateCode(CompiledFunction function, ClassFile classFile){
+    int[] code = function.getCode();
+
+    //the JVM code offset of each instruction
+    int[] jvmOffsets = new int[code.length+1];
+    Arrays.fill(jvmOffsets, -1);
+    int[] fixups = new int[16]; //JVM offsets of branch instructions, then their targets
+    int numFixups = 0;
+
+    Bytes out = new Bytes();
+    int pc = 0;
+    while(pc < code.length){
+      jvmOffsets[pc] = out.size();
+      int opcode = code[pc];
+      switch(opcode){
+        case CONST:
+          loadConstant(out, code[pc+1]);
+          break;
+        case LOAD:
+          out.u1(ALOAD_0+FRAME_LOCAL);
+          for(int depth = code[pc+1]; depth > 0; depth--){
+            out.u1(GETFIELD);
+            out.u2(classFile.fieldRef(FRAME, "parent", "L"+FRAME+";"));
+          }
+          if(code[pc+2]==0){
+            out.u1(GETFIELD);
+            out.u2(classFile.fieldRef(FRAME, "value", "L"+ASTNODE+";"));
+          }
+          else{
+            out.u1(GETFIELD);
+            out.u2(classFile.fieldRef(FRAME, "slots", "[L"+ASTNODE+";"));
+            pushInt(out, code[pc+2], classFile);
+            out.u1(AALOAD);
+          }
+          loadConstant(out, code[pc+3]);
+          out.u1(ALOAD_0+FRAME_LOCAL);
+          invokeStatic(out, classFile, JIT_RUNTIME, "bound", "(L"+ASTNODE+";L"+ASTNODE+";L"+FRAME+";)L"+ASTNODE+";");
+          break;
+        case UNDECLARED:
+          loadConstant(out, code[pc+1]);
+          invokeStatic(out, classFile, OPERATIONS, "unboundIdentifier", VALUE_DESCRIPTOR);
+          out.u1(POP);
+          break;
+        case CLOSURE:
+          pushInt(out, code[pc+1], classFile);
+          out.u1(ALOAD_0+FRAME_LOCAL);
+          out.u1(ALOAD_0+MACHINE_LOCAL);
+          invokeStatic(out, classFile, JIT_RUNTIME, "closure", "(IL"+FRAME+";Lrpal/BytecodeMachine;)L"+ASTNODE+";");
+          break;
+        case TUPLE:{
+          int numElements = code[pc+1];
+          if(numElements==0){
+            out.u1(GETSTATIC);
+            out.u2(classFile.fieldRef("rpal/Tuple", "NIL", "Lrpal/Tuple;"));
+            break;
+          }
+          pushInt(out, numElements, classFile);
+          out.u1(ANEWARRAY);
+          out.u2(classFile.classRef(ASTNODE));
+          out.u1(ASTORE_0+TEMP_LOCAL);
+          for(int i = 0; i < numElements; i++){ //the first element is on top
+            out.u1(ALOAD_0+TEMP_LOCAL);
+            out.u1(SWAP);
+            pushInt(out, i, classFile);
+            out.u1(SWAP);
+            out.u1(AASTORE);
+          }
+          out.u1(ALOAD_0+TEMP_LOCAL);
+          invokeStatic(out, classFile, "rpal/Tuple", "of", "([L"+ASTNODE+";)Lrpal/Tuple;");
+          break;
+        }
+        case BETA:
+        case JUMP:
+          if(opcode==BETA)
+            invokeStatic(out, classFile, OPERATIONS, "testCondition", "(L"+ASTNODE+";)Z");
+          if(numFixups+2>fixups.length)
+            fixups = Arrays.copyOf(fixups, fixups.length*2);
+          fixups[numFixups++] = out.size();
+          fixups[numFixups++] = code[pc+1];
+          out.u1(opcode==BETA? IFEQ : GOTO);
+          out.u2(0);
+          break;
+        case GAMMA:
+          out.u1(ALOAD_0+MACHINE_LOCAL);
+          invokeStatic(out, classFile, JIT_RUNTIME, "gamma", "(L"+ASTNODE+";L"+ASTNODE+";Lrpal/BytecodeMachine;)L"+ASTNODE+";");
+          break;
+        case RETURN:
+          out.u1(ARETURN);
+          break;
+        case NOT:
+          invokeStatic(out, classFile, OPERATIONS, "not", VALUE_DESCRIPTOR);
+          break;
+        case NEG:
+          invokeStatic(out, classFile, OPERATIONS, "neg", VALUE_DESCRIPTOR);
+          break;
+        default: //binary operators, whose helpers are named after the opcodes
+          invokeStatic(out, classFile, JIT_RUNTIME, binaryOperatorName(opcode), BINARY_DESCRIPTOR);
+          break;
+      }
+      pc += LENGTHS[code[pc]];
+    }
+
+    if(out.size()>Short.MAX_VALUE)
+      return null;
+    byte[] bytes = out.toArray();
+    for(int i = 0; i < numFixups; i += 2){
+      int offset = jvmOffsets[fixups[i+1]]-fixups[i];
+      bytes[fixups[i]+1] = (byte)(offset>>8);
+      bytes[fixups[i]+2] = (byte)offset;
+    }
+    return bytes;
+  }
+
+  private static String binaryOperatorName(int opcode){
+    switch(opcode){
+      case PLUS: return "plus";
+      case MINUS: return "minus";
+      case MULT: return "mult";
+      case DIV: return "div";
+      case EXP: return "exp";
+      case LS: return "ls";
+      case LE: return "le";
+      case GR: return "gr";
+      case GE: return "ge";
+      case EQ: return "eq";
+      case NE: return "ne";
+      case OR: return "or";
+      case AND: return "and";
+      case AUG: return "aug";
+      default: throw new IllegalArgumentException("Not a binary operator: "+opcode);
+    }
+  }
+
+  private void loadConstant(Bytes out, int index){
+    out.u1(ALOAD_0+CONSTANTS_LOCAL);
+    pushInt(out, index, null);
+    out.u1(AALOAD);
+  }
+
+  private void pushInt(Bytes out, int value, ClassFile classFile){
+    if(value>=-1 && value<=5)
+      out.u1(ICONST_0+value);
+    else if(value>=Byte.MIN_VALUE && value<=Byte.MAX_VALUE){
+      out.u1(BIPUSH);
+      out.u1(value);
+    }
+    else if(value>=Short.MIN_VALUE && value<=Short.MAX_VALUE){
+      out.u1(SIPUSH);
+      out.u2(value);
+    }
+    else{
+      out.u1(LDC_W);
+      out.u2(classFile.integer(value));
+    }
+  }
+
+  private void invokeStatic(Bytes out, ClassFile classFile, String owner, String name, String descriptor){
+    out.u1(INVOKESTATIC);
+    out.u2(classFile.methodRef(owner, name, descriptor));
+  }
+
+  /**
+   * The constant pool of the class being generated, and the methods that need it.
+   */
+  private static class ClassFile{
+    private Bytes pool = new Bytes();
+    private int count = 1;
+    private HashMap<String, Integer> entries = new HashMap<String, Integer>();
+
+    int utf8(String value){
+      Integer index = entries.get("U"+value);
+      if(index!=null)
+        return index;
+      pool.u1(1);
+      pool.utf(value);
+      entries.put("U"+value, count);
+      return count++;
+    }
+
+    int integer(int value){
+      Integer index = entries.get("I"+value);
+      if(index!=null)
+        return index;
+      pool.u1(3);
+      pool.u4(value);
+      entries.put("I"+value, count);
+      return count++;
+    }
+
+    int classRef(String name){
+      Integer index = entries.get("C"+name);
+      if(index!=null)
+        return index;
+      int nameIndex = utf8(name);
+      pool.u1(7);
+      pool.u2(nameIndex);
+      entries.put("C"+name, count);
+      return count++;
+    }
+
+    private int nameAndType(String name, String descriptor){
+      Integer index = entries.get("N"+name+" "+descriptor);
+      if(index!=null)
+        return index;
+      int nameIndex = utf8(name);
+      int descriptorIndex = utf8(descriptor);
+      pool.u1(12);
+      pool.u2(nameIndex);
+      pool.u2(descriptorIndex);
+      entries.put("N"+name+" "+descriptor, count);
+      return count++;
+    }
+
+    private int memberRef(int tag, String owner, String name, String descriptor){
+      String key = tag+owner+"."+name+" "+descriptor;
+      Integer index = entries.get(key);
+      if(index!=null)
+        return index;
+      int classIndex = classRef(owner);
+      int nameAndTypeIndex = nameAndType(name, descriptor);
+      pool.u1(tag);
+      pool.u2(classIndex);
+      pool.u2(nameAndTypeIndex);
+      entries.put(key, count);
+      return count++;
+    }
+
+    int fieldRef(String owner, String name, String descriptor){
+      return memberRef(9, owner, name, descriptor);
+    }
+
+    int methodRef(String owner, String name, String descriptor){
+      return memberRef(10, owner, name, descriptor);
+    }
+
+    void method(Bytes out, int access, String name, String descriptor, int maxStack, int maxLocals, byte[] code){
+      out.u2(access);
+      out.u2(utf8(name));
+      out.u2(utf8(descriptor));
+      out.u2(1);
+      out.u2(utf8("Code"));
+      out.u4(12+code.length);
+      out.u2(maxStack);
+      out.u2(maxLocals);
+      out.u4(code.length);
+      out.bytes(code);
+      out.u2(0); //exception table
+      out.u2(0); //attributes
+    }
+
+    void writeConstantPool(Bytes out){
+      out.u2(count);
+      out.bytes(pool.toArray());
+    }
+  }
+
+  /**
+   * A growable byte array written big-endian, as class files are.
+   */
+  private static class Bytes{
+    private byte[] bytes = new byte[256];
+    private int size;
+
+    int size(){
+      return size;
+    }
+
+    void u1(int value){
+      if(size==bytes.length)
+        bytes = Arrays.copyOf(bytes, size*2);
+      bytes[size++] = (byte)value;
+    }
+
+    void u2(int value){
+      u1(value>>8);
+      u1(value);
+    }
+
+    void u4(int value){
+      u2(value>>16);
+      u2(value);
+    }
+
+    void bytes(byte[] values){
+      for(byte value: values)
+        u1(value);
+    }
+
+    void utf(String value){
+      //RPAL names are ASCII, so the modified UTF-8 of class files is just the characters
+      u2(value.length());
+      for(int i = 0; i < value.length(); i++)
+        u1(value.charAt(i));
+    }
+
+    byte[] toArray(){
+      return Arrays.copyOf(bytes, size);
+    }
+  }
+}
+
+/**
+ * The code the {@link JitCompiler} generates for a function.
+ */
+interface CompiledCode{
+  ASTNode run(BytecodeMachine.Frame frame, ASTNode[] constants, BytecodeMachine machine);
+}
+
+/**
+ * Helpers called by the code the {@link JitCompiler} generates. The operands of the binary
+ * operators come in the order they were pushed, so rand2 first.
+ */
+final class JitRuntime{
+
+  private JitRuntime(){
+  }
+
+  public static ASTNode bound(ASTNode value, ASTNode variable, BytecodeMachine.Frame frame){
+    if(value==null) //bound to a missing tuple element
+      return BytecodeMachine.lookupOuter(frame, (Variable)variable);
+    return value;
+  }
+
+  public static ASTNode closure(int function, BytecodeMachine.Frame frame, BytecodeMachine machine){
+    return machine.newClosure(function, frame);
+  }
+
+  public static ASTNode gamma(ASTNode rand, ASTNode rator, BytecodeMachine machine){
+    return machine.apply(rator, rand);
+  }
+
+  public static ASTNode plus(ASTNode rand2, ASTNode rand1){
+    if(rand1 instanceof IntegerValue && rand2 instanceof IntegerValue)
+      return IntegerValue.valueOf(((IntegerValue)rand1).getIntValue()+((IntegerValue)rand2).getIntValue());
+    return Operations.arithmetic(ASTNodeType.PLUS, rand1, rand2);
+  }
+
+  public static ASTNode minus(ASTNode rand2, ASTNode rand1){
+    if(rand1 instanceof IntegerValue && rand2 instanceof IntegerValue)
+      return IntegerValue.valueOf(((IntegerValue)rand1).getIntValue()-((IntegerValue)rand2).getIntValue());
+    return Operations.arithmetic(ASTNodeType.MINUS, rand1, rand2);
+  }
+
+  public static ASTNode mult(ASTNode rand2, ASTNode rand1){
+    return Operations.arithmetic(ASTNodeType.MULT, rand1, rand2);
+  }
+
+  public static ASTNode div(ASTNode rand2, ASTNode rand1){
+    return Operations.arithmetic(ASTNodeType.DIV, rand1, rand2);
+  }
+
+  public static ASTNode exp(ASTNode rand2, ASTNode rand1){
+    return Operations.arithmetic(ASTNodeType.EXP, rand1, rand2);
+  }
+
+  public static ASTNode ls(ASTNode rand2, ASTNode rand1){
+    if(rand1 instanceof IntegerValue && rand2 instanceof IntegerValue)
+      return TruthValue.valueOf(((IntegerValue)rand1).getIntValue()<((IntegerValue)rand2).getIntValue());
+    return Operations.arithmetic(ASTNodeType.LS, rand1, rand2);
+  }
+
+  public static ASTNode le(ASTNode rand2, ASTNode rand1){
+    return Operations.arithmetic(ASTNodeType.LE, rand1, rand2);
+  }
+
+  public static ASTNode gr(ASTNode rand2, ASTNode rand1){
+    return Operations.arithmetic(ASTNodeType.GR, rand1, rand2);
+  }
+
+  public static ASTNode ge(ASTNode rand2, ASTNode rand1){
+    return Operations.arithmetic(ASTNodeType.GE, rand1, rand2);
+  }
+
+  public static ASTNode eq(ASTNode rand2, ASTNode rand1){
+    if(rand1 instanceof IntegerValue && rand2 instanceof IntegerValue)
+      return TruthValue.valueOf(((IntegerValue)rand1).getIntValue()==((IntegerValue)rand2).getIntValue());
+    return Operations.equality(ASTNodeType.EQ, rand1, rand2);
+  }
+
+  public static ASTNode ne(ASTNode rand2, ASTNode rand1){
+    return Operations.equality(ASTNodeType.NE, rand1, rand2);
+  }
+
+  public static ASTNode or(ASTNode rand2, ASTNode rand1){
+    return Operations.orAnd(ASTNodeType.OR, rand1, rand2);
+  }
+
+  public static ASTNode and(ASTNode rand2, ASTNode rand1){
+    return Operations.orAnd(ASTNodeType.AND, rand1, rand2);
+  }
+
+  public static ASTNode aug(ASTNode rand2, ASTNode rand1){
+    return Operations.aug(rand1, rand2);
+  }
+}
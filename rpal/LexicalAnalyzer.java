@@ -1,281 +1,308 @@
 package rpal;
-import java.io.BufferedReader;
-import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
-import java.util.List;
 import java.util.regex.Pattern;
 
 /*
  * This class is responsible for reading the input file and breaking it down into tokens.
+ * 
+ * The whole file is loaded in one go (see readSource) and decoded into a single char array that
+ * is then scanned by position. Characters are classified through the table in CharClasses rather
+ * than by running a regular expression per character, and tokens are recorded as index ranges
+ * into that array (see TokenStream).
  */
 
 public class LexicalAnalyzer{
   
-  private BufferedReader buffer;
-  private String extraCharRead;
-  private final List<String> reservedIdentifiers = Arrays.asList(new String[]{"let","in","within","fn","where","aug","or",
-                                                                              "not","gr","ge","ls","le","eq","ne","true",
-                                                                              "false","nil","dummy","rec","and"});
+  private char[] source;
+  private int sourceLength;
+  private int position;
   private int sourceLineNumber;
   
-  public LexicalAnalyzer(String inputFile) throws IOException{
-    sourceLineNumber = 1;
-    buffer = new BufferedReader(new InputStreamReader(new FileInputStream(new File(inputFile))));
-  }
+  private static final long MAP_THRESHOLD = 1<<20;
   
+  //token kind of each reserved word, indexed by SymbolTable id
+  private static final TokenType[] reservedWordTypes = new TokenType[SymbolTable.AND+1];
   
-  public Token readNextToken(){
-    Token nextToken = null;
-    String nextChar;
-    if(extraCharRead!=null){
-      nextChar = extraCharRead;
-      extraCharRead = null;
-    } else {
-      nextChar = readNextChar();
-    }
-    if(nextChar!=null) {
-      nextToken = buildToken(nextChar);
-    }
-    return nextToken;
+  static{
+    reservedWordTypes[SymbolTable.LET] = TokenType.LET;
+    reservedWordTypes[SymbolTable.IN] = TokenType.IN;
+    reservedWordTypes[SymbolTable.WITHIN] = TokenType.WITHIN;
+    reservedWordTypes[SymbolTable.FN] = TokenType.FN;
+    reservedWordTypes[SymbolTable.WHERE] = TokenType.WHERE;
+    reservedWordTypes[SymbolTable.AUG] = TokenType.AUG;
+    reservedWordTypes[SymbolTable.OR] = TokenType.OR;
+    reservedWordTypes[SymbolTable.NOT] = TokenType.NOT;
+    reservedWordTypes[SymbolTable.GR] = TokenType.GR;
+    reservedWordTypes[SymbolTable.GE] = TokenType.GE;
+    reservedWordTypes[SymbolTable.LS] = TokenType.LS;
+    reservedWordTypes[SymbolTable.LE] = TokenType.LE;
+    reservedWordTypes[SymbolTable.EQ] = TokenType.EQ;
+    reservedWordTypes[SymbolTable.NE] = TokenType.NE;
+    reservedWordTypes[SymbolTable.TRUE] = TokenType.TRUE;
+    reservedWordTypes[SymbolTable.FALSE] = TokenType.FALSE;
+    reservedWordTypes[SymbolTable.NIL] = TokenType.NIL;
+    reservedWordTypes[SymbolTable.DUMMY] = TokenType.DUMMY;
+    reservedWordTypes[SymbolTable.REC] = TokenType.REC;
+    reservedWordTypes[SymbolTable.AND] = TokenType.AND;
+  }
+  
+  public LexicalAnalyzer(String inputFile) throws IOException{
+    sourceLineNumber = 1;
+    CharBuffer chars = readSource(inputFile);
+    source = chars.array();
+    position = chars.arrayOffset()+chars.position();
+    sourceLength = chars.arrayOffset()+chars.limit();
   }
 
-  private String readNextChar(){
-    String nextChar = null;
+  /**
+   * Reads the whole file through a single FileChannel and decodes it with the platform charset
+   * (the same one an InputStreamReader would use). Files of at least MAP_THRESHOLD bytes are
+   * memory-mapped instead of copied into a heap buffer first.
+   */
+  private static CharBuffer readSource(String inputFile) throws IOException{
+    FileChannel channel = FileChannel.open(Paths.get(inputFile), StandardOpenOption.READ);
     try{
-      int c = buffer.read();
-      if(c!=-1){
-        nextChar = Character.toString((char)c);
-        if(nextChar.equals("\n")) {
-         sourceLineNumber++;
-        }
-      } else
-          buffer.close();
-    } catch (IOException e) {
+      long size = channel.size();
+      if(size>Integer.MAX_VALUE)
+        throw new IOException("File "+inputFile+" is too large");
       
+      ByteBuffer bytes;
+      if(size>=MAP_THRESHOLD)
+        bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      else{
+        bytes = ByteBuffer.allocate((int)size);
+        while(bytes.hasRemaining() && channel.read(bytes)!=-1);
+        bytes.flip();
+      }
+      return Charset.defaultCharset().decode(bytes);
+    }finally{
+      channel.close();
     }
-
-    return nextChar;
   }
-
   
-  private Token buildToken(String currentChar){
-    Token nextToken = null;
-    if(RegExPatterns.letterPattern.matcher(currentChar).matches()){
-      nextToken = buildIdentifierToken(currentChar);
-    }
-    else if(RegExPatterns.digitPattern.matcher(currentChar).matches()){
-      nextToken = buildIntegerToken(currentChar);
-    }
-    else if(RegExPatterns.opSymbolPattern.matcher(currentChar).matches()){ //comment tokens are also entered from here
-      nextToken = buildOperatorToken(currentChar);
-    }
-    else if(currentChar.equals("\'")){
-      nextToken = buildStringToken(currentChar);
-    }
-    else if(RegExPatterns.whiteSpacePattern.matcher(currentChar).matches()){
-      nextToken = buildSpaceToken(currentChar);
-    }
-    else if(RegExPatterns.punctuationPattern.matcher(currentChar).matches()){
-      nextToken = buildPunctuationPattern(currentChar);
-    }
-    return nextToken;
-  }
-
   
-  private Token buildIdentifierToken(String currentChar){
-    Token identifierToken = new Token();
-    identifierToken.setType(TokenType.IDENTIFIER);
-    identifierToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder(currentChar);
+  /**
+   * Scans the whole source and returns its tokens. Whitespace and comments are skipped without
+   * producing anything; the text of the remaining tokens stays in the source buffer and is only
+   * copied out when the parser needs it as an AST node value.
+   * 
+   * A character that belongs to no token class, or an unterminated string, ends the input.
+   */
+  public TokenStream tokenize(){
+    TokenStream tokens = new TokenStream(source, (sourceLength-position)/4+16);
     
-    String nextChar = readNextChar();
-    while(nextChar!=null){ //null indicates the file ended
-      if(RegExPatterns.identifierPattern.matcher(nextChar).matches()){
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
+    while(position<sourceLength){
+      int start = position;
+      char currentChar = readNextChar();
+      int line = sourceLineNumber;
+      
+      if(CharClasses.is(currentChar, CharClasses.LETTER)){
+        skipWhile(CharClasses.IDENTIFIER);
+        int symbol = SymbolTable.intern(source, start, position-start);
+        TokenType type = SymbolTable.isReservedWord(symbol)? reservedWordTypes[symbol] : TokenType.IDENTIFIER;
+        tokens.add(type, start, position-start, line, symbol);
       }
-      else{
-        extraCharRead = nextChar;
-        break;
+      else if(CharClasses.is(currentChar, CharClasses.DIGIT)){
+        skipWhile(CharClasses.DIGIT);
+        tokens.add(TokenType.INTEGER, start, position-start, line, SymbolTable.NONE);
       }
-    }
-    
-    String value = sBuilder.toString();
-    if(reservedIdentifiers.contains(value)) {
-      identifierToken.setType(TokenType.RESERVED);
-    }
-    
-    identifierToken.setValue(value);
-    return identifierToken;
-  }
-
-  
-  private Token buildIntegerToken(String currentChar){
-    Token integerToken = new Token();
-    integerToken.setType(TokenType.INTEGER);
-    integerToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder(currentChar);
-    
-    String nextChar = readNextChar();
-    while(nextChar!=null){ //null indicates the file ended
-      if(RegExPatterns.digitPattern.matcher(nextChar).matches()){
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
+      else if(CharClasses.is(currentChar, CharClasses.OP_SYMBOL)){ //comments are also entered from here
+        if(currentChar=='/' && position<sourceLength && source[position]=='/'){
+          skipComment();
+          continue;
+        }
+        skipWhile(CharClasses.OP_SYMBOL);
+        tokens.add(operatorType(start, position-start), start, position-start, line, SymbolTable.NONE);
       }
-      else{
-        extraCharRead = nextChar;
-        break;
+      else if(currentChar=='\''){
+        if(!skipString())
+          break; //unterminated string
+        tokens.add(TokenType.STRING, start+1, position-start-2, line, SymbolTable.NONE); //the quotes are not part of the value
       }
-    }
-    
-    integerToken.setValue(sBuilder.toString());
-    return integerToken;
-  }
-
-  
-  private Token buildOperatorToken(String currentChar){
-    Token opSymbolToken = new Token();
-    opSymbolToken.setType(TokenType.OPERATOR);
-    opSymbolToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder(currentChar);
-    
-    String nextChar = readNextChar();
-    
-    if(currentChar.equals("/") && nextChar.equals("/")) {
-      return buildCommentToken(currentChar+nextChar);
-    }
-    
-    while(nextChar!=null){ //null indicates the file ended
-      if(RegExPatterns.opSymbolPattern.matcher(nextChar).matches()){
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
+      else if(CharClasses.is(currentChar, CharClasses.WHITE_SPACE)){
+        while(position<sourceLength && CharClasses.is(source[position], CharClasses.WHITE_SPACE))
+          readNextChar();
       }
-      else{
-        extraCharRead = nextChar;
-        break;
+      else if(CharClasses.is(currentChar, CharClasses.PUNCTUATION)){
+        tokens.add(punctuationType(currentChar), start, 1, line, SymbolTable.NONE);
       }
+      else
+        break;
     }
     
-    opSymbolToken.setValue(sBuilder.toString());
-    return opSymbolToken;
+    return tokens;
   }
 
-  
-  private Token buildStringToken(String currentChar){
-    Token stringToken = new Token();
-    stringToken.setType(TokenType.STRING);
-    stringToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder("");
-    
-    String nextChar = readNextChar();
-    while(nextChar!=null){ 
-      if(nextChar.equals("\'")){ 
-        stringToken.setValue(sBuilder.toString());
-        return stringToken;
-      }
-      else if(RegExPatterns.stringPattern.matcher(nextChar).matches()){ //match Letter | Digit | Operator_symbol
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
-      }
-    }
-    
-    return null;
+  /**
+   * Consumes the character at the current position. The line count is bumped as soon as a newline
+   * is consumed, so a token's line number is that of its first character.
+   */
+  private char readNextChar(){
+    char c = source[position++];
+    if(c=='\n')
+      sourceLineNumber++;
+    return c;
   }
-  
-  private Token buildSpaceToken(String currentChar){
-    Token deleteToken = new Token();
-    deleteToken.setType(TokenType.DELETE);
-    deleteToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder(currentChar);
-    
-    String nextChar = readNextChar();
-    while(nextChar!=null){ 
-      if(RegExPatterns.whiteSpacePattern.matcher(nextChar).matches()){
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
-      }
-      else{
-        extraCharRead = nextChar;
-        break;
-      }
+
+  /**
+   * Skips characters of the given class. Only used for classes that never contain a newline.
+   */
+  private void skipWhile(int charClass){
+    while(position<sourceLength && CharClasses.is(source[position], charClass))
+      position++;
+  }
+
+  /**
+   * Skips the body of a string up to and including the closing quote.
+   * @return false if the input ended before the closing quote
+   */
+  private boolean skipString(){
+    while(position<sourceLength){
+      if(readNextChar()=='\'')
+        return true;
     }
-    
-    deleteToken.setValue(sBuilder.toString());
-    return deleteToken;
+    return false;
   }
-  
-  private Token buildCommentToken(String currentChar){
-    Token commentToken = new Token();
-    commentToken.setType(TokenType.DELETE);
-    commentToken.setSourceLineNumber(sourceLineNumber);
-    StringBuilder sBuilder = new StringBuilder(currentChar);
-    
-    String nextChar = readNextChar();
-    while(nextChar!=null){ 
-      if(RegExPatterns.commentPattern.matcher(nextChar).matches()){
-        sBuilder.append(nextChar);
-        nextChar = readNextChar();
-      }
-      else if(nextChar.equals("\n"))
+
+  /**
+   * Skips a comment up to and including the newline that ends it.
+   */
+  private void skipComment(){
+    while(position<sourceLength){
+      if(readNextChar()=='\n')
         break;
     }
-    
-    commentToken.setValue(sBuilder.toString());
-    return commentToken;
   }
 
-  private Token buildPunctuationPattern(String currentChar){
-    Token punctuationToken = new Token();
-    punctuationToken.setSourceLineNumber(sourceLineNumber);
-    punctuationToken.setValue(currentChar);
-    if(currentChar.equals("(")) {
-      punctuationToken.setType(TokenType.L_PAREN);
-    }
-    else if(currentChar.equals(")")) {
-      punctuationToken.setType(TokenType.R_PAREN);
-    }
-    else if(currentChar.equals(";")) {
-      punctuationToken.setType(TokenType.SEMICOLON);
+  /**
+   * Maps the operator symbol in source[start, start+length) to its token kind. Symbols the
+   * grammar does not use are plain OPERATOR tokens.
+   */
+  private TokenType operatorType(int start, int length){
+    char first = source[start];
+    if(length==1){
+      switch(first){
+        case '.': return TokenType.DOT;
+        case ',': return TokenType.COMMA;
+        case '|': return TokenType.BAR;
+        case '&': return TokenType.AMPERSAND;
+        case '>': return TokenType.GREATER;
+        case '<': return TokenType.LESS;
+        case '+': return TokenType.PLUS;
+        case '-': return TokenType.MINUS;
+        case '*': return TokenType.TIMES;
+        case '/': return TokenType.DIVIDE;
+        case '@': return TokenType.AT;
+        case '=': return TokenType.EQUALS;
+        default: return TokenType.OPERATOR;
+      }
     }
-    else if(currentChar.equals(",")) {
-      punctuationToken.setType(TokenType.COMMA);
+    if(length==2){
+      char second = source[start+1];
+      if(first=='-' && second=='>')
+        return TokenType.ARROW;
+      if(first=='>' && second=='=')
+        return TokenType.GREATER_EQUAL;
+      if(first=='<' && second=='=')
+        return TokenType.LESS_EQUAL;
+      if(first=='*' && second=='*')
+        return TokenType.POWER;
     }
-    
-    return punctuationToken;
+    return TokenType.OPERATOR;
+  }
+
+  private TokenType punctuationType(char currentChar){
+    if(currentChar=='(')
+      return TokenType.L_PAREN;
+    else if(currentChar==')')
+      return TokenType.R_PAREN;
+    else if(currentChar==';')
+      return TokenType.SEMICOLON;
+    else
+      return TokenType.COMMA;
   }
 }
 
 
-class Token{
-  private TokenType type;
-  private String value;
-  private int sourceLineNumber;
+/*
+ * The tokens of a source file, stored as parallel primitive arrays: kind, start offset into the
+ * source buffer, length and line number, plus the SymbolTable id of identifiers and reserved words.
+ * Token text is exposed as slices of the source buffer; a String is only created when getString
+ * is called.
+ */
+class TokenStream{
+  private static final TokenType[] tokenTypes = TokenType.values();
   
-  public TokenType getType(){
-    return type;
+  private final char[] source;
+  private byte[] kinds;
+  private int[] starts;
+  private int[] lengths;
+  private int[] lines;
+  private int[] symbols;
+  private int size;
+  
+  public TokenStream(char[] source, int initialCapacity){
+    this.source = source;
+    kinds = new byte[initialCapacity];
+    starts = new int[initialCapacity];
+    lengths = new int[initialCapacity];
+    lines = new int[initialCapacity];
+    symbols = new int[initialCapacity];
   }
   
-  public void setType(TokenType type){
-    this.type = type;
+  public void add(TokenType type, int start, int length, int line, int symbol){
+    if(size==kinds.length){
+      int capacity = size*2;
+      kinds = Arrays.copyOf(kinds, capacity);
+      starts = Arrays.copyOf(starts, capacity);
+      lengths = Arrays.copyOf(lengths, capacity);
+      lines = Arrays.copyOf(lines, capacity);
+      symbols = Arrays.copyOf(symbols, capacity);
+    }
+    kinds[size] = (byte)type.ordinal();
+    starts[size] = start;
+    lengths[size] = length;
+    lines[size] = line;
+    symbols[size] = symbol;
+    size++;
   }
   
-  public String getValue(){
-    return value;
+  public int size(){
+    return size;
   }
   
-  public void setValue(String value){
-    this.value = value;
+  public TokenType getType(int index){
+    return tokenTypes[kinds[index]];
   }
-
-  public int getSourceLineNumber(){
-    return sourceLineNumber;
+  
+  public int getSourceLineNumber(int index){
+    return lines[index];
   }
-
-  public void setSourceLineNumber(int sourceLineNumber){
-    this.sourceLineNumber = sourceLineNumber;
+  
+  public int getSymbol(int index){
+    return symbols[index];
+  }
+  
+  public CharSequence getText(int index){
+    return CharBuffer.wrap(source, starts[index], lengths[index]);
+  }
+  
+  public String getString(int index){
+    return new String(source, starts[index], lengths[index]);
+  }
+  
+  /**
+   * Interns the text of the token in the SymbolTable straight from the source buffer.
+   */
+  public int internText(int index){
+    return SymbolTable.intern(source, starts[index], lengths[index]);
   }
 }
 
@@ -283,13 +310,51 @@ enum TokenType{
   IDENTIFIER,
   INTEGER,
   STRING,
-  OPERATOR,
-  DELETE,
+  OPERATOR, //an operator symbol the grammar has no use for
   L_PAREN,
   R_PAREN,
   SEMICOLON,
   COMMA,
-  RESERVED; 
+  END_OF_INPUT, //never stored in a TokenStream
+  
+  //Reserved words
+  LET,
+  IN,
+  WITHIN,
+  FN,
+  WHERE,
+  AUG,
+  OR,
+  NOT,
+  GR,
+  GE,
+  LS,
+  LE,
+  EQ,
+  NE,
+  TRUE,
+  FALSE,
+  NIL,
+  DUMMY,
+  REC,
+  AND,
+  
+  //Operator symbols
+  DOT,
+  ARROW,
+  BAR,
+  AMPERSAND,
+  GREATER,
+  GREATER_EQUAL,
+  LESS,
+  LESS_EQUAL,
+  PLUS,
+  MINUS,
+  TIMES,
+  DIVIDE,
+  POWER,
+  AT,
+  EQUALS;
 }
 
 class RegExPatterns{
@@ -320,4 +385,43 @@ class RegExPatterns{
   private static String escapeMetaChars(String inputString, String charsToEscape){
     return inputString.replaceAll(charsToEscape,"\\\\\\\\$1");
   }
-}
\ No newline at end of file
+}
+
+/*
+ * Character class table for the 7-bit ASCII range, indexed by char value. It is filled once from
+ * RegExPatterns, so every character falls into exactly the classes the regular expressions define
+ * (including the '+-/' range in the operator class, which also covers ',' and '.'). Characters
+ * outside the table belong to no class.
+ */
+class CharClasses{
+  public static final int LETTER = 1;
+  public static final int DIGIT = 1<<1;
+  public static final int IDENTIFIER = 1<<2; //letter, digit or underscore
+  public static final int OP_SYMBOL = 1<<3;
+  public static final int PUNCTUATION = 1<<4;
+  public static final int WHITE_SPACE = 1<<5;
+  
+  private static final int[] classTable = new int[128];
+  
+  static{
+    for(int c = 0; c < classTable.length; c++){
+      String s = Character.toString((char)c);
+      if(RegExPatterns.letterPattern.matcher(s).matches())
+        classTable[c] |= LETTER;
+      if(RegExPatterns.digitPattern.matcher(s).matches())
+        classTable[c] |= DIGIT;
+      if(RegExPatterns.identifierPattern.matcher(s).matches())
+        classTable[c] |= IDENTIFIER;
+      if(RegExPatterns.opSymbolPattern.matcher(s).matches())
+        classTable[c] |= OP_SYMBOL;
+      if(RegExPatterns.punctuationPattern.matcher(s).matches())
+        classTable[c] |= PUNCTUATION;
+      if(RegExPatterns.whiteSpacePattern.matcher(s).matches())
+        classTable[c] |= WHITE_SPACE;
+    }
+  }
+  
+  public static boolean is(int c, int charClass){
+    return c>=0 && c<classTable.length && (classTable[c] & charClass)!=0;
+  }
+}
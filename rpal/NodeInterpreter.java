@@ -0,0 +1,822 @@
+package rpal;
+import java.util.Arrays;
+
+import static rpal.BytecodeCompiler.*;
+
+/**
+ * Evaluates a program as a tree of {@link EvalNode}s that specialize themselves to the values they
+ * see, instead of dispatching on the type of every control structure element as the
+ * {@link CSEMachine} does. A + that has only been given integers becomes a node that adds integers,
+ * a call that has always called the same function becomes a node that calls it directly, and so on.
+ * A specialized node that is given something else replaces itself with the generic node for the
+ * operation, so the output is always the same as the CSE machine's.
+ *
+ * The trees are built from the code of the {@link BytecodeCompiler}, whose variables are already
+ * resolved to frames and slots; the tree of a function is built the first time it is called.
+ * RPAL calls are Java calls here, so the program runs on a thread with a large stack.
+ */
+public class NodeInterpreter{
+
+  private CompiledProgram program;
+  private ASTNode[] constants;
+  private NodeFunction[] functions;
+
+  public NodeInterpreter(AST ast){
+    program = new BytecodeCompiler().compile(ast);
+    constants = program.getConstants();
+    CompiledFunction[] compiledFunctions = program.getFunctions();
+    functions = new NodeFunction[compiledFunctions.length];
+    for(int i = 0; i < compiledFunctions.length; i++)
+      functions[i] = new NodeFunction(compiledFunctions[i], this);
+  }
+
+  public void evaluateProgram(){
+    NodeFunction root = null;
+    for(NodeFunction function: functions){
+      if(function.getCompiledFunction()==program.getRootFunction())
+        root = function;
+    }
+    final NodeFunction rootFunction = root;
+    BytecodeMachine.runWithLargeStack(new Runnable(){
+      public void run(){
+        rootFunction.call(new BytecodeMachine.Frame(null, new ASTNode[0]));
+      }
+    });
+  }
+
+  /**
+   * Builds the tree of the code between start and end, which computes one value.
+   */
+  EvalNode buildTree(int[] code, int start, int end){
+    EvalNode[] nodes = new EvalNode[16];
+    int numNodes = 0;
+    int pc = start;
+    while(pc < end){
+      EvalNode node;
+      int opcode = code[pc];
+      switch(opcode){
+        case CONST:
+          node = new ConstNode(constants[code[pc+1]]);
+          break;
+        case LOAD:
+          node = new LocalNode(code[pc+1], code[pc+2], (Variable)constants[code[pc+3]]);
+          break;
+        case UNDECLARED:
+          node = new UndeclaredNode(constants[code[pc+1]]);
+          break;
+        case CLOSURE:
+          node = new ClosureNode(functions[code[pc+1]]);
+          break;
+        case TUPLE:{
+          EvalNode[] elements = new EvalNode[code[pc+1]];
+          for(int i = elements.length-1; i >= 0; i--)
+            elements[i] = nodes[--numNodes];
+          node = new TupleNode(elements);
+          break;
+        }
+        case BETA:{
+          //cond, BETA else, then, JUMP end, else
+          int elseStart = code[pc+1];
+          int thenEnd = elseStart-LENGTHS[JUMP];
+          if(code[thenEnd]!=JUMP)
+            throw new IllegalStateException("Conditional without a jump at "+thenEnd);
+          int elseEnd = code[thenEnd+1];
+          EvalNode condition = nodes[--numNodes];
+          node = new ConditionalNode(condition, buildTree(code, pc+LENGTHS[BETA], thenEnd), buildTree(code, elseStart, elseEnd));
+          pc = elseEnd;
+          nodes = push(nodes, numNodes++, node);
+          continue;
+        }
+        case GAMMA:{
+          EvalNode rator = nodes[--numNodes];
+          EvalNode rand = nodes[--numNodes];
+          node = new UninitializedApplyNode(rand, rator, this);
+          break;
+        }
+        case NOT:
+          node = new NotNode(nodes[--numNodes]);
+          break;
+        case NEG:
+          node = new NegNode(nodes[--numNodes]);
+          break;
+        case JUMP:
+        case RETURN:
+          throw new IllegalStateException("Unexpected opcode "+opcode+" at "+pc);
+        default:{ //binary operators; the operand pushed last is rand1
+          EvalNode rand1 = nodes[--numNodes];
+          EvalNode rand2 = nodes[--numNodes];
+          node = new UninitializedBinaryNode(binaryOperatorType(opcode), rand2, rand1);
+          break;
+        }
+      }
+      nodes = push(nodes, numNodes++, node);
+      pc += LENGTHS[opcode];
+    }
+    if(numNodes!=1)
+      throw new IllegalStateException("Code from "+start+" to "+end+" computes "+numNodes+" values");
+    return nodes[0];
+  }
+
+  private static EvalNode[] push(EvalNode[] nodes, int index, EvalNode node){
+    if(index==nodes.length)
+      nodes = Arrays.copyOf(nodes, index*2);
+    nodes[index] = node;
+    return nodes;
+  }
+
+  private static ASTNodeType binaryOperatorType(int opcode){
+    switch(opcode){
+      case PLUS: return ASTNodeType.PLUS;
+      case MINUS: return ASTNodeType.MINUS;
+      case MULT: return ASTNodeType.MULT;
+      case DIV: return ASTNodeType.DIV;
+      case EXP: return ASTNodeType.EXP;
+      case LS: return ASTNodeType.LS;
+      case LE: return ASTNodeType.LE;
+      case GR: return ASTNodeType.GR;
+      case GE: return ASTNodeType.GE;
+      case EQ: return ASTNodeType.EQ;
+      case NE: return ASTNodeType.NE;
+      case OR: return ASTNodeType.OR;
+      case AND: return ASTNodeType.AND;
+      case AUG: return ASTNodeType.AUG;
+      default: throw new IllegalArgumentException("Not a binary operator: "+opcode);
+    }
+  }
+
+  /**
+   * The frame of a call of the function with rand as its argument, under the given parent frame.
+   */
+  static BytecodeMachine.Frame bind(NodeFunction function, BytecodeMachine.Frame parent, ASTNode rand){
+    int numBoundVars = function.getCompiledFunction().getNumBoundVars();
+    if(numBoundVars==1) //RULE 4
+      return new BytecodeMachine.Frame(parent, rand);
+    return new BytecodeMachine.Frame(parent, Operations.bindTuple(rand, numBoundVars)); //RULE 11
+  }
+
+  /**
+   * The closure an eta's delta returns, if the delta just returns a closure of its body (as it
+   * does for "rec f = fn ..."), or null.
+   */
+  NodeClosure etaBodyClosure(NodeEta eta){
+    CompiledFunction function = eta.getClosure().getFunction().getCompiledFunction();
+    if(!function.isClosureOnly())
+      return null;
+    return new NodeClosure(functions[function.getCode()[1]], new BytecodeMachine.Frame(eta.getClosure().getFrame(), eta));
+  }
+
+  /**
+   * RULE 3, for any rator: what the generic nodes do.
+   */
+  ASTNode apply(ASTNode rator, ASTNode rand){
+    switch(rator.getType()){
+      case DELTA:{
+        NodeClosure closure = (NodeClosure)rator;
+        return closure.getFunction().call(bind(closure.getFunction(), closure.getFrame(), rand));
+      }
+      case ETA:{ //RULE 13
+        NodeEta eta = (NodeEta)rator;
+        ASTNode f = etaBodyClosure(eta);
+        if(f==null)
+          f = apply(eta.getClosure(), eta);
+        return apply(f, rand);
+      }
+      case YSTAR: //RULE 12
+        if(rand.getType()!=ASTNodeType.DELTA)
+          EvaluationError.printError(rand.getSourceLineNumber(), "Expected a Delta; was given \""+rand.getValue()+"\"");
+        return new NodeEta((NodeClosure)rand);
+      case TUPLE: //RULE 10
+        return Operations.selectTupleElement((Tuple)rator, rand);
+      default:
+        ASTNode result = Operations.applyBuiltin(rator, rand);
+        if(result==null)
+          EvaluationError.printError(rator.getSourceLineNumber(), "Don't know how to evaluate \""+rator.getValue()+"\"");
+        return result;
+    }
+  }
+
+  /**
+   * A function of the program, with the tree of its body once it has been called.
+   */
+  static final class NodeFunction{
+    private final CompiledFunction function;
+    private final NodeInterpreter interpreter;
+    private BodyNode body;
+
+    NodeFunction(CompiledFunction function, NodeInterpreter interpreter){
+      this.function = function;
+      this.interpreter = interpreter;
+    }
+
+    CompiledFunction getCompiledFunction(){
+      return function;
+    }
+
+    ASTNode call(BytecodeMachine.Frame frame){
+      if(body==null){
+        int[] code = function.getCode();
+        body = new BodyNode(interpreter.buildTree(code, 0, code.length-1)); //without the RETURN
+      }
+      return body.execute(frame);
+    }
+  }
+}
+
+/**
+ * A node of the trees the {@link NodeInterpreter} evaluates. A node that specializes itself does so
+ * by having its parent replace it with another node.
+ *
+ * A node decides what to become after running its children, and a child can call the function the
+ * node is in, which runs the node again. The inner run can replace the node first, so a node checks
+ * isReplaced() before it makes its replacement, which adopts its children.
+ */
+abstract class EvalNode{
+  EvalNode parent;
+  private boolean replaced;
+
+  public abstract ASTNode execute(BytecodeMachine.Frame frame);
+
+  /**
+   * Replaces the given child of this node, which must be one of its children. Only nodes with
+   * children that can be replaced override this.
+   */
+  void replaceChild(EvalNode oldChild, EvalNode newChild){
+    throw new IllegalStateException(getClass().getSimpleName()+" has no replaceable children");
+  }
+
+  /**
+   * Puts newNode in the place of this node in the tree and returns it.
+   */
+  <T extends EvalNode> T replace(T newNode){
+    if(replaced)
+      throw new IllegalStateException(getClass().getSimpleName()+" is no longer in the tree");
+    newNode.parent = parent;
+    parent.replaceChild(this, newNode);
+    replaced = true;
+    return newNode;
+  }
+
+  /**
+   * Returns whether this node has been replaced, so that it is no longer in the tree.
+   */
+  boolean isReplaced(){
+    return replaced;
+  }
+
+  IllegalStateException notAChild(EvalNode oldChild){
+    return new IllegalStateException(oldChild.getClass().getSimpleName()+" is not a child of "+getClass().getSimpleName());
+  }
+
+  <T extends EvalNode> T adopt(T child){
+    child.parent = this;
+    return child;
+  }
+}
+
+/**
+ * The root of the tree of a function body.
+ */
+class BodyNode extends EvalNode{
+  private EvalNode body;
+
+  BodyNode(EvalNode body){
+    this.body = adopt(body);
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    return body.execute(frame);
+  }
+
+  @Override
+  void replaceChild(EvalNode oldChild, EvalNode newChild){
+    if(body!=oldChild)
+      throw notAChild(oldChild);
+    body = newChild;
+  }
+}
+
+/**
+ * A literal, builtin function or Y*.
+ */
+class ConstNode extends EvalNode{
+  private final ASTNode value;
+
+  ConstNode(ASTNode value){
+    this.value = value;
+  }
+
+  ASTNode getValue(){
+    return value;
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    return value;
+  }
+}
+
+// RULE 1
+class LocalNode extends EvalNode{
+  private final int depth;
+  private final int slot;
+  private final Variable variable;
+
+  LocalNode(int depth, int slot, Variable variable){
+    this.depth = depth;
+    this.slot = slot;
+    this.variable = variable;
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    BytecodeMachine.Frame f = frame;
+    for(int i = depth; i > 0; i--)
+      f = f.parent;
+    ASTNode value = slot==0? f.value : f.slots[slot];
+    if(value==null) //bound to a missing tuple element
+      return BytecodeMachine.lookupOuter(frame, variable);
+    return value;
+  }
+}
+
+class UndeclaredNode extends EvalNode{
+  private final ASTNode identifier;
+
+  UndeclaredNode(ASTNode identifier){
+    this.identifier = identifier;
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    return Operations.unboundIdentifier(identifier);
+  }
+}
+
+// RULE 2
+class ClosureNode extends EvalNode{
+  private final NodeInterpreter.NodeFunction function;
+
+  ClosureNode(NodeInterpreter.NodeFunction function){
+    this.function = function;
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    return new NodeClosure(function, frame);
+  }
+}
+
+// RULE 9
+class TupleNode extends EvalNode{
+  private final EvalNode[] elements; //in the order they are evaluated, which is the reverse of the tuple's
+
+  TupleNode(EvalNode[] elements){
+    this.elements = elements;
+    for(EvalNode element: elements)
+      adopt(element);
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    if(elements.length==0)
+      return Tuple.NIL;
+    ASTNode[] values = new ASTNode[elements.length];
+    for(int i = 0; i < elements.length; i++)
+      values[elements.length-1-i] = elements[i].execute(frame);
+    return Tuple.of(values);
+  }
+
+  @Override
+  void replaceChild(EvalNode oldChild, EvalNode newChild){
+    for(int i = 0; i < elements.length; i++){
+      if(elements[i]==oldChild){
+        elements[i] = newChild;
+        return;
+      }
+    }
+    throw notAChild(oldChild);
+  }
+}
+
+// RULE 8
+class ConditionalNode extends EvalNode{
+  private EvalNode condition;
+  private EvalNode thenPart;
+  private EvalNode elsePart;
+
+  ConditionalNode(EvalNode condition, EvalNode thenPart, EvalNode elsePart){
+    this.condition = adopt(condition);
+    this.thenPart = adopt(thenPart);
+    this.elsePart = adopt(elsePart);
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    if(Operations.testCondition(condition.execute(frame)))
+      return thenPart.execute(frame);
+    return elsePart.execute(frame);
+  }
+
+  @Override
+  void replaceChild(EvalNode oldChild, EvalNode newChild){
+    if(condition==oldChild)
+      condition = newChild;
+    else if(thenPart==oldChild)
+      thenPart = newChild;
+    else if(elsePart==oldChild)
+      elsePart = newChild;
+    else
+      throw notAChild(oldChild);
+  }
+}
+
+// RULE 7
+class NotNode extends EvalNode{
+  private EvalNode rand;
+
+  NotNode(EvalNode rand){
+    this.rand = adopt(rand);
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    return Operations.not(rand.execute(frame));
+  }
+
+  @Override
+  void replaceChild(EvalNode oldChild, EvalNode newChild){
+    if(rand!=oldChild)
+      throw notAChild(oldChild);
+    rand = newChild;
+  }
+}
+
+class NegNode extends EvalNode{
+  private EvalNode rand;
+
+  NegNode(EvalNode rand){
+    this.rand = adopt(rand);
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    return Operations.neg(rand.execute(frame));
+  }
+
+  @Override
+  void replaceChild(EvalNode oldChild, EvalNode newChild){
+    if(rand!=oldChild)
+      throw notAChild(oldChild);
+    rand = newChild;
+  }
+}
+
+/**
+ * RULE 6. rand2 is evaluated first, as in the CSE machine. The first time it runs, the node
+ * replaces itself with an integer node if it is given integers, or else the generic one.
+ */
+abstract class BinaryNode extends EvalNode{
+  protected final ASTNodeType type;
+  protected EvalNode rand2;
+  protected EvalNode rand1;
+
+  BinaryNode(ASTNodeType type, EvalNode rand2, EvalNode rand1){
+    this.type = type;
+    this.rand2 = adopt(rand2);
+    this.rand1 = adopt(rand1);
+  }
+
+  @Override
+  void replaceChild(EvalNode oldChild, EvalNode newChild){
+    if(rand2==oldChild)
+      rand2 = newChild;
+    else if(rand1==oldChild)
+      rand1 = newChild;
+    else
+      throw notAChild(oldChild);
+  }
+}
+
+class UninitializedBinaryNode extends BinaryNode{
+
+  UninitializedBinaryNode(ASTNodeType type, EvalNode rand2, EvalNode rand1){
+    super(type, rand2, rand1);
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    ASTNode value2 = rand2.execute(frame);
+    ASTNode value1 = rand1.execute(frame);
+    if(isReplaced()) //by a recursive call made by rand2 or rand1
+      return Operations.binaryOperation(type, value1, value2);
+    BinaryNode specialized = null;
+    if(value1 instanceof IntegerValue && value2 instanceof IntegerValue)
+      specialized = IntBinaryNode.create(type, rand2, rand1);
+    if(specialized==null)
+      specialized = new GenericBinaryNode(type, rand2, rand1);
+    replace(specialized);
+    return Operations.binaryOperation(type, value1, value2);
+  }
+}
+
+class GenericBinaryNode extends BinaryNode{
+
+  GenericBinaryNode(ASTNodeType type, EvalNode rand2, EvalNode rand1){
+    super(type, rand2, rand1);
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    ASTNode value2 = rand2.execute(frame);
+    ASTNode value1 = rand1.execute(frame);
+    return Operations.binaryOperation(type, value1, value2);
+  }
+}
+
+/**
+ * An operator that has only been given integers. Given anything else, it becomes generic.
+ */
+abstract class IntBinaryNode extends BinaryNode{
+
+  IntBinaryNode(ASTNodeType type, EvalNode rand2, EvalNode rand1){
+    super(type, rand2, rand1);
+  }
+
+  /**
+   * Returns the node for the operator, or null if it does not take integers.
+   */
+  static IntBinaryNode create(ASTNodeType type, EvalNode rand2, EvalNode rand1){
+    switch(type){
+      case PLUS:
+        return new IntBinaryNode(type, rand2, rand1){
+          ASTNode compute(int value1, int value2){
+            return IntegerValue.valueOf(value1+value2);
+          }
+        };
+      case MINUS:
+        return new IntBinaryNode(type, rand2, rand1){
+          ASTNode compute(int value1, int value2){
+            return IntegerValue.valueOf(value1-value2);
+          }
+        };
+      case MULT:
+        return new IntBinaryNode(type, rand2, rand1){
+          ASTNode compute(int value1, int value2){
+            return IntegerValue.valueOf(value1*value2);
+          }
+        };
+      case DIV:
+        return new IntBinaryNode(type, rand2, rand1){
+          ASTNode compute(int value1, int value2){
+            return IntegerValue.valueOf(value1/value2);
+          }
+        };
+      case LS:
+        return new IntBinaryNode(type, rand2, rand1){
+          ASTNode compute(int value1, int value2){
+            return TruthValue.valueOf(value1<value2);
+          }
+        };
+      case LE:
+        return new IntBinaryNode(type, rand2, rand1){
+          ASTNode compute(int value1, int value2){
+            return TruthValue.valueOf(value1<=value2);
+          }
+        };
+      case GR:
+        return new IntBinaryNode(type, rand2, rand1){
+          ASTNode compute(int value1, int value2){
+            return TruthValue.valueOf(value1>value2);
+          }
+        };
+      case GE:
+        return new IntBinaryNode(type, rand2, rand1){
+          ASTNode compute(int value1, int value2){
+            return TruthValue.valueOf(value1>=value2);
+          }
+        };
+      case EQ:
+        return new IntBinaryNode(type, rand2, rand1){
+          ASTNode compute(int value1, int value2){
+            return TruthValue.valueOf(value1==value2);
+          }
+        };
+      case NE:
+        return new IntBinaryNode(type, rand2, rand1){
+          ASTNode compute(int value1, int value2){
+            return TruthValue.valueOf(value1!=value2);
+          }
+        };
+      default:
+        return null;
+    }
+  }
+
+  abstract ASTNode compute(int value1, int value2);
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    ASTNode value2 = rand2.execute(frame);
+    ASTNode value1 = rand1.execute(frame);
+    if(value1 instanceof IntegerValue && value2 instanceof IntegerValue)
+      return compute(((IntegerValue)value1).getIntValue(), ((IntegerValue)value2).getIntValue());
+    if(!isReplaced())
+      replace(new GenericBinaryNode(type, rand2, rand1));
+    return Operations.binaryOperation(type, value1, value2);
+  }
+}
+
+/**
+ * RULE 3: rand is evaluated first, then rator. The first time it runs, the node replaces itself
+ * with one for what rator turned out to be.
+ */
+abstract class ApplyNode extends EvalNode{
+  protected final NodeInterpreter interpreter;
+  protected EvalNode rand;
+  protected EvalNode rator;
+
+  ApplyNode(EvalNode rand, EvalNode rator, NodeInterpreter interpreter){
+    this.interpreter = interpreter;
+    this.rand = adopt(rand);
+    this.rator = adopt(rator);
+  }
+
+  /**
+   * Replaces this node with the generic one, unless it has been replaced already, and applies
+   * rator to rand.
+   */
+  protected ASTNode generalize(ASTNode ratorValue, ASTNode randValue){
+    if(!isReplaced())
+      replace(new GenericApplyNode(rand, rator, interpreter));
+    return interpreter.apply(ratorValue, randValue);
+  }
+
+  @Override
+  void replaceChild(EvalNode oldChild, EvalNode newChild){
+    if(rand==oldChild)
+      rand = newChild;
+    else if(rator==oldChild)
+      rator = newChild;
+    else
+      throw notAChild(oldChild);
+  }
+}
+
+class UninitializedApplyNode extends ApplyNode{
+
+  UninitializedApplyNode(EvalNode rand, EvalNode rator, NodeInterpreter interpreter){
+    super(rand, rator, interpreter);
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    ASTNode randValue = rand.execute(frame);
+    ASTNode ratorValue = rator.execute(frame);
+    if(isReplaced()) //by a recursive call made by rand or rator
+      return interpreter.apply(ratorValue, randValue);
+    if(ratorValue.getType()==ASTNodeType.DELTA)
+      replace(new DirectCallNode(rand, rator, interpreter, ((NodeClosure)ratorValue).getFunction()));
+    else if(ratorValue.getType()==ASTNodeType.ETA && ((NodeEta)ratorValue).getClosure().getFunction().getCompiledFunction().isClosureOnly())
+      replace(new EtaCallNode(rand, rator, interpreter, (NodeEta)ratorValue));
+    else if(ratorValue.getType()==ASTNodeType.TUPLE && rand instanceof ConstNode && randValue.getType()==ASTNodeType.INTEGER)
+      replace(new TupleSelectNode(rand, rator, interpreter, randValue));
+    else
+      replace(new GenericApplyNode(rand, rator, interpreter));
+    return interpreter.apply(ratorValue, randValue);
+  }
+}
+
+class GenericApplyNode extends ApplyNode{
+
+  GenericApplyNode(EvalNode rand, EvalNode rator, NodeInterpreter interpreter){
+    super(rand, rator, interpreter);
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    ASTNode randValue = rand.execute(frame);
+    ASTNode ratorValue = rator.execute(frame);
+    return interpreter.apply(ratorValue, randValue);
+  }
+}
+
+/**
+ * A call that has only called closures of one function, which it calls without looking at
+ * what else rator could be.
+ */
+class DirectCallNode extends ApplyNode{
+  private final NodeInterpreter.NodeFunction function;
+
+  DirectCallNode(EvalNode rand, EvalNode rator, NodeInterpreter interpreter, NodeInterpreter.NodeFunction function){
+    super(rand, rator, interpreter);
+    this.function = function;
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    ASTNode randValue = rand.execute(frame);
+    ASTNode ratorValue = rator.execute(frame);
+    if(ratorValue instanceof NodeClosure && ((NodeClosure)ratorValue).getFunction()==function)
+      return function.call(NodeInterpreter.bind(function, ((NodeClosure)ratorValue).getFrame(), randValue));
+    return generalize(ratorValue, randValue);
+  }
+}
+
+/**
+ * A call of a recursive function through its eta ("rec f = fn ..."), which has only seen etas of
+ * one function that just returns a closure of its body. It calls the body directly, without
+ * making that closure (RULE 13).
+ */
+class EtaCallNode extends ApplyNode{
+  private final NodeInterpreter.NodeFunction etaFunction;
+  private final NodeInterpreter.NodeFunction bodyFunction;
+
+  EtaCallNode(EvalNode rand, EvalNode rator, NodeInterpreter interpreter, NodeEta eta){
+    super(rand, rator, interpreter);
+    this.etaFunction = eta.getClosure().getFunction();
+    this.bodyFunction = interpreter.etaBodyClosure(eta).getFunction();
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    ASTNode randValue = rand.execute(frame);
+    ASTNode ratorValue = rator.execute(frame);
+    if(ratorValue instanceof NodeEta && ((NodeEta)ratorValue).getClosure().getFunction()==etaFunction){
+      NodeClosure closure = ((NodeEta)ratorValue).getClosure();
+      BytecodeMachine.Frame etaFrame = new BytecodeMachine.Frame(closure.getFrame(), ratorValue);
+      return bodyFunction.call(NodeInterpreter.bind(bodyFunction, etaFrame, randValue));
+    }
+    return generalize(ratorValue, randValue);
+  }
+}
+
+/**
+ * A selection from a tuple with a constant index (RULE 10).
+ */
+class TupleSelectNode extends ApplyNode{
+  private final ASTNode index;
+
+  TupleSelectNode(EvalNode rand, EvalNode rator, NodeInterpreter interpreter, ASTNode index){
+    super(rand, rator, interpreter);
+    this.index = index;
+  }
+
+  @Override
+  public ASTNode execute(BytecodeMachine.Frame frame){
+    ASTNode ratorValue = rator.execute(frame);
+    if(ratorValue.getType()==ASTNodeType.TUPLE)
+      return Operations.selectTupleElement((Tuple)ratorValue, index);
+    return generalize(ratorValue, index);
+  }
+}
+
+/**
+ * A closure of the node interpreter: a function and the frame it was created in.
+ */
+class NodeClosure extends ASTNode{
+  private final NodeInterpreter.NodeFunction function;
+  private final BytecodeMachine.Frame frame;
+
+  public NodeClosure(NodeInterpreter.NodeFunction function, BytecodeMachine.Frame frame){
+    setType(ASTNodeType.DELTA);
+    setSourceLineNumber(function.getCompiledFunction().getSourceLineNumber());
+    this.function = function;
+    this.frame = frame;
+  }
+
+  public NodeInterpreter.NodeFunction getFunction(){
+    return function;
+  }
+
+  public BytecodeMachine.Frame getFrame(){
+    return frame;
+  }
+
+  //used if the program evaluation results in a partial application
+  @Override
+  public String getValue(){
+    CompiledFunction compiledFunction = function.getCompiledFunction();
+    return "[lambda closure: "+SymbolTable.getName(compiledFunction.getBoundVars()[0])+": "+compiledFunction.getIndex()+"]";
+  }
+}
+
+class NodeEta extends ASTNode{
+  private final NodeClosure closure;
+
+  public NodeEta(NodeClosure closure){
+    setType(ASTNodeType.ETA);
+    this.closure = closure;
+  }
+
+  public NodeClosure getClosure(){
+    return closure;
+  }
+
+  //used if the program evaluation results in a partial application
+  @Override
+  public String getValue(){
+    CompiledFunction compiledFunction = closure.getFunction().getCompiledFunction();
+    return "[eta closure: "+SymbolTable.getName(compiledFunction.getBoundVars()[0])+": "+compiledFunction.getIndex()+"]";
+  }
+}
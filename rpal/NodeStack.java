@@ -0,0 +1,58 @@
+package rpal;
+import java.util.Arrays;
+
+/**
+ * Array-backed stack of ASTNodes. Used instead of java.util.Stack, whose methods are all
+ * synchronized, for the parser's node stack, the CSE machine's value stack and to collect the
+ * instructions of delta bodies.
+ */
+class NodeStack{
+  private ASTNode[] nodes;
+  private int size;
+
+  public NodeStack(){
+    this(16);
+  }
+
+  public NodeStack(int initialCapacity){
+    nodes = new ASTNode[Math.max(initialCapacity, 1)];
+  }
+
+  public void push(ASTNode node){
+    if(size==nodes.length)
+      nodes = Arrays.copyOf(nodes, size*2);
+    nodes[size++] = node;
+  }
+
+  public ASTNode pop(){
+    ASTNode node = nodes[--size];
+    nodes[size] = null;
+    return node;
+  }
+
+  public ASTNode peek(){
+    return nodes[size-1];
+  }
+
+  public boolean isEmpty(){
+    return size==0;
+  }
+
+  public int size(){
+    return size;
+  }
+
+  /**
+   * Returns the node at the given position, counting from the bottom of the stack.
+   */
+  public ASTNode get(int index){
+    return nodes[index];
+  }
+
+  /**
+   * Returns the nodes from the bottom of the stack to the top.
+   */
+  public ASTNode[] toArray(){
+    return Arrays.copyOf(nodes, size);
+  }
+}
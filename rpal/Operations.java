@@ -0,0 +1,247 @@
+package rpal;
+
+/**
+ * The operators and builtin functions of RPAL as functions from values to values: the CSE
+ * machine's rules 6, 7, 8, 10 and 11 and its reserved identifiers, including the errors they
+ * report. Every evaluation engine applies them through this class, so they cannot differ.
+ */
+final class Operations{
+
+  private Operations(){
+  }
+
+  // RULE 6
+  public static ASTNode binaryOperation(ASTNodeType type, ASTNode rand1, ASTNode rand2){
+    switch(type){
+      case PLUS:
+      case MINUS:
+      case MULT:
+      case DIV:
+      case EXP:
+      case LS:
+      case LE:
+      case GR:
+      case GE:
+        return arithmetic(type, rand1, rand2);
+      case EQ:
+      case NE:
+        return equality(type, rand1, rand2);
+      case OR:
+      case AND:
+        return orAnd(type, rand1, rand2);
+      case AUG:
+        return aug(rand1, rand2);
+      default:
+        throw new IllegalArgumentException("Not a binary operator: "+type);
+    }
+  }
+
+  public static ASTNode arithmetic(ASTNodeType type, ASTNode rand1, ASTNode rand2){
+    if(rand1.getType()!=ASTNodeType.INTEGER || rand2.getType()!=ASTNodeType.INTEGER)
+      EvaluationError.printError(rand1.getSourceLineNumber(), "Expected two integers; was given \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
+
+    int value1 = ((IntegerValue)rand1).getIntValue();
+    int value2 = ((IntegerValue)rand2).getIntValue();
+
+    switch(type){
+      case PLUS:
+        return IntegerValue.valueOf(value1+value2);
+      case MINUS:
+        return IntegerValue.valueOf(value1-value2);
+      case MULT:
+        return IntegerValue.valueOf(value1*value2);
+      case DIV:
+        return IntegerValue.valueOf(value1/value2);
+      case EXP:
+        return IntegerValue.valueOf((int)Math.pow(value1, value2));
+      case LS:
+        return TruthValue.valueOf(value1<value2);
+      case LE:
+        return TruthValue.valueOf(value1<=value2);
+      case GR:
+        return TruthValue.valueOf(value1>value2);
+      case GE:
+        return TruthValue.valueOf(value1>=value2);
+      default:
+        throw new IllegalArgumentException("Not an arithmetic operator: "+type);
+    }
+  }
+
+  public static ASTNode equality(ASTNodeType type, ASTNode rand1, ASTNode rand2){
+    boolean equal = false;
+    if(isTruthValue(rand1)){
+      if(!isTruthValue(rand2))
+        EvaluationError.printError(rand1.getSourceLineNumber(), "Cannot compare dissimilar types; was given \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
+      equal = rand1.getType()==rand2.getType();
+    }
+    else{
+      if(rand1.getType()!=rand2.getType())
+        EvaluationError.printError(rand1.getSourceLineNumber(), "Cannot compare dissimilar types; was given \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
+
+      if(rand1.getType()==ASTNodeType.STRING)
+        equal = ((StringValue)rand1).contentEquals((StringValue)rand2);
+      else if(rand1.getType()==ASTNodeType.INTEGER)
+        equal = ((IntegerValue)rand1).getIntValue()==((IntegerValue)rand2).getIntValue();
+      else
+        EvaluationError.printError(rand1.getSourceLineNumber(), "Don't know how to " + type + " \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
+    }
+    return TruthValue.valueOf(type==ASTNodeType.EQ? equal : !equal);
+  }
+
+  public static ASTNode orAnd(ASTNodeType type, ASTNode rand1, ASTNode rand2){
+    if(!isTruthValue(rand1) || !isTruthValue(rand2))
+      EvaluationError.printError(rand1.getSourceLineNumber(), "Don't know how to " + type + " \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
+
+    if(type==ASTNodeType.OR)
+      return TruthValue.valueOf(rand1.getType()==ASTNodeType.TRUE || rand2.getType()==ASTNodeType.TRUE);
+    return TruthValue.valueOf(rand1.getType()==ASTNodeType.TRUE && rand2.getType()==ASTNodeType.TRUE);
+  }
+
+  public static ASTNode aug(ASTNode rand1, ASTNode rand2){
+    if(rand1.getType()!=ASTNodeType.TUPLE)
+      EvaluationError.printError(rand1.getSourceLineNumber(), "Cannot augment a non-tuple \""+rand1.getValue()+"\"");
+
+    return ((Tuple)rand1).append(rand2);
+  }
+
+  // RULE 7
+  public static ASTNode not(ASTNode rand){
+    if(!isTruthValue(rand))
+      EvaluationError.printError(rand.getSourceLineNumber(), "Expecting a truthvalue; was given \""+rand.getValue()+"\"");
+
+    return TruthValue.valueOf(rand.getType()!=ASTNodeType.TRUE);
+  }
+
+  public static ASTNode neg(ASTNode rand){
+    if(rand.getType()!=ASTNodeType.INTEGER)
+      EvaluationError.printError(rand.getSourceLineNumber(), "Expecting a truthvalue; was given \""+rand.getValue()+"\"");
+
+    return IntegerValue.valueOf(-((IntegerValue)rand).getIntValue());
+  }
+
+  public static boolean isTruthValue(ASTNode node){
+    return node.getType()==ASTNodeType.TRUE || node.getType()==ASTNodeType.FALSE;
+  }
+
+  /**
+   * Checks that the value a conditional tests is a truth value and returns whether it is true.
+   */
+  public static boolean testCondition(ASTNode conditionResultNode){
+    if(!isTruthValue(conditionResultNode))
+      EvaluationError.printError(conditionResultNode.getSourceLineNumber(), "Expecting a truthvalue; found \""+conditionResultNode.getValue()+"\"");
+    return conditionResultNode.getType()==ASTNodeType.TRUE;
+  }
+
+  // RULE 10
+  public static ASTNode selectTupleElement(Tuple rator, ASTNode rand){
+    if(rand.getType()!=ASTNodeType.INTEGER)
+      EvaluationError.printError(rand.getSourceLineNumber(), "Non-integer tuple selection with \""+rand.getValue()+"\"");
+
+    ASTNode result = getNthTupleChild(rator, ((IntegerValue)rand).getIntValue());
+    if(result==null)
+      EvaluationError.printError(rand.getSourceLineNumber(), "Tuple selection index "+rand.getValue()+" out of bounds");
+    return result;
+  }
+
+  /**
+   * Get the nth element of the tuple. Note that n starts from 1 and NOT 0. Returns null if
+   * there is no such element.
+   */
+  public static ASTNode getNthTupleChild(Tuple tupleNode, int n){
+    if(n>tupleNode.size() || tupleNode.size()==0)
+      return null;
+    if(n<1) //the first element, as the original sibling walk gave
+      return tupleNode.getElement(0);
+    return tupleNode.getElement(n-1);
+  }
+
+  /**
+   * RULE 11: the values bound to the variables of a lambda with the given number of them. A
+   * variable with no corresponding element of the tuple is bound to null.
+   */
+  public static ASTNode[] bindTuple(ASTNode rand, int numVars){
+    if(rand.getType()!=ASTNodeType.TUPLE)
+      EvaluationError.printError(rand.getSourceLineNumber(), "Expected a tuple; was given \""+rand.getValue()+"\"");
+
+    ASTNode[] values = new ASTNode[numVars];
+    for(int i = 0; i < numVars; i++)
+      values[i] = getNthTupleChild((Tuple)rand, i+1); //+ 1 coz tuple indexing starts at 1
+    return values;
+  }
+
+  public static ASTNode conc(ASTNode rand1, ASTNode rand2){
+    if(rand1.getType()!=ASTNodeType.STRING || rand2.getType()!=ASTNodeType.STRING)
+      EvaluationError.printError(rand1.getSourceLineNumber(), "Expected two strings; was given \""+rand1.getValue()+"\", \""+rand2.getValue()+"\"");
+
+    return StringValue.concat((StringValue)rand1, (StringValue)rand2);
+  }
+
+  /**
+   * Applies the builtin function named by the given value to rand. Conc applied to its first
+   * argument gives a {@link PartialConc}, which is applied to the second here too. Returns null if
+   * rator is not a builtin function.
+   */
+  public static ASTNode applyBuiltin(ASTNode rator, ASTNode rand){
+    if(rator instanceof PartialConc)
+      return conc(((PartialConc)rator).getFirst(), rand);
+    switch(rator.getSymbol()){
+      case SymbolTable.CONC:
+      case SymbolTable.CONC_LOWERCASE: //typos
+        return new PartialConc(rand);
+      case SymbolTable.ISINTEGER:
+        return TruthValue.valueOf(rand.getType()==ASTNodeType.INTEGER);
+      case SymbolTable.ISSTRING:
+        return TruthValue.valueOf(rand.getType()==ASTNodeType.STRING);
+      case SymbolTable.ISDUMMY:
+        return TruthValue.valueOf(rand.getType()==ASTNodeType.DUMMY);
+      case SymbolTable.ISFUNCTION:
+        return TruthValue.valueOf(rand.getType()==ASTNodeType.DELTA);
+      case SymbolTable.ISTUPLE:
+        return TruthValue.valueOf(rand.getType()==ASTNodeType.TUPLE);
+      case SymbolTable.ISTRUTHVALUE:
+        return TruthValue.valueOf(isTruthValue(rand));
+      case SymbolTable.STEM:
+        if(rand.getType()!=ASTNodeType.STRING)
+          EvaluationError.printError(rand.getSourceLineNumber(), "Expected a string; was given \""+rand.getValue()+"\"");
+        return ((StringValue)rand).stem();
+      case SymbolTable.STERN:
+        if(rand.getType()!=ASTNodeType.STRING)
+          EvaluationError.printError(rand.getSourceLineNumber(), "Expected a string; was given \""+rand.getValue()+"\"");
+        return ((StringValue)rand).stern();
+      case SymbolTable.PRINT:
+      case SymbolTable.PRINT_LOWERCASE: //typos
+        print(rand);
+        return DummyValue.PRINT_RESULT;
+      case SymbolTable.ITOS:
+        if(rand.getType()!=ASTNodeType.INTEGER)
+          EvaluationError.printError(rand.getSourceLineNumber(), "Expected an integer; was given \""+rand.getValue()+"\"");
+        return new StringValue(rand.getValue());
+      case SymbolTable.ORDER:
+        if(rand.getType()!=ASTNodeType.TUPLE)
+          EvaluationError.printError(rand.getSourceLineNumber(), "Expected a tuple; was given \""+rand.getValue()+"\"");
+        return IntegerValue.valueOf(((Tuple)rand).size());
+      case SymbolTable.NULL:
+        if(rand.getType()!=ASTNodeType.TUPLE)
+          EvaluationError.printError(rand.getSourceLineNumber(), "Expected a tuple; was given \""+rand.getValue()+"\"");
+        return TruthValue.valueOf(((Tuple)rand).size()==0);
+      default:
+        return null;
+    }
+  }
+
+  private static void print(ASTNode rand){
+    String evaluationResult = String.valueOf(rand.getValue());
+    evaluationResult = evaluationResult.replace("\\t", "\t");
+    evaluationResult = evaluationResult.replace("\\n", "\n");
+    System.out.print(evaluationResult);
+  }
+
+  /**
+   * The value of an identifier that is not bound to anything: the builtin function of that name.
+   */
+  public static ASTNode unboundIdentifier(ASTNode node){
+    if(!SymbolTable.isBuiltin(node.getSymbol()))
+      EvaluationError.printError(node.getSourceLineNumber(), "Undeclared identifier \""+node.getValue()+"\"");
+    return node;
+  }
+}
@@ -1,5 +1,5 @@
 package rpal;
-import java.util.Stack;
+import java.util.Arrays;
 
 
 
@@ -10,62 +10,104 @@ import java.util.Stack;
 public class Parser{
 
   private LexicalAnalyzer s;
-  private Token currentToken;
-  Stack<ASTNode> stack;
+  private TokenStream tokens;
+  private int currentToken; //index into tokens; equal to tokens.size() once the input is exhausted
+  private TokenType currentType; //kind of the current token; END_OF_INPUT once the input is exhausted
+  NodeStack stack;
+  private boolean precedenceClimbing;
+  private boolean standardizeWhileParsing;
+  private ASTArena arena; //null unless the tree is built in compact form
+  private int[] arenaStack; //node stack used instead of stack when building in compact form
+  private int arenaStackSize;
 
   public Parser(LexicalAnalyzer s){
     this.s = s;
-    stack = new Stack<ASTNode>();
+    stack = new NodeStack();
+  }
+
+  /**
+   * Selects the parser for the operator levels of the grammar (Tc down to Ap). The default is the
+   * recursive descent methods TC() to AP(); with precedence climbing, operatorExpression() parses
+   * the same levels with an explicit operator stack. Both build the same AST.
+   */
+  public void setPrecedenceClimbing(boolean precedenceClimbing){
+    this.precedenceClimbing = precedenceClimbing;
+  }
+  
+  /**
+   * Selects the compact AST store: the tree is built as int indices into an {@link ASTArena}
+   * instead of as ASTNode objects.
+   */
+  public void setCompactAST(boolean compactAST){
+    if(compactAST){
+      arena = new ASTArena(1024);
+      arenaStack = new int[64];
+    }
+    else{
+      arena = null;
+      arenaStack = null;
+    }
+  }
+  
+  /**
+   * Makes the parser standardize every node as soon as it is built. Nodes are built bottom-up,
+   * so the children of a node are always standardized before it, just as in AST.standardize(),
+   * and the unstandardized tree never exists. The AST returned is already standardized.
+   */
+  public void setStandardizeWhileParsing(boolean standardizeWhileParsing){
+    this.standardizeWhileParsing = standardizeWhileParsing;
   }
   
   public AST buildAST(){
     beginParse();
-    return new AST(stack.pop());
+    AST ast;
+    if(arena!=null)
+      ast = new AST(arena, arenaStack[--arenaStackSize]);
+    else
+      ast = new AST(stack.pop());
+    ast.setStandardized(standardizeWhileParsing);
+    return ast;
   }
 
   public void beginParse(){
+    tokens = s.tokenize();
+    currentToken = -1;
     eat();
     E(); 
-    if(currentToken!=null)
+    if(!isEndOfInput())
       throw new RuntimeException("Expected EOF.");
   }
 
   private void eat(){
-
-    do{
-      // get the next token
-      currentToken = s.readNextToken();
-    }while(isCurrentTokenType(TokenType.DELETE));
-    if(null != currentToken){
-      if(currentToken.getType()==TokenType.IDENTIFIER){
-        createTerminalASTNode(ASTNodeType.IDENTIFIER, currentToken.getValue());
-      }
-      else if(currentToken.getType()==TokenType.INTEGER){
-        createTerminalASTNode(ASTNodeType.INTEGER, currentToken.getValue());
-      } 
-      else if(currentToken.getType()==TokenType.STRING){
-        createTerminalASTNode(ASTNodeType.STRING, currentToken.getValue());
-      }
+    if(!isEndOfInput())
+      currentToken++;
+    if(isEndOfInput()){
+      currentType = TokenType.END_OF_INPUT;
+      return;
+    }
+    currentType = tokens.getType(currentToken);
+    if(currentType==TokenType.IDENTIFIER){
+      int symbol = tokens.getSymbol(currentToken);
+      createTerminalASTNode(ASTNodeType.IDENTIFIER, SymbolTable.getName(symbol), symbol);
+    }
+    else if(currentType==TokenType.INTEGER){
+      createLiteralASTNode(ASTNodeType.INTEGER);
+    } 
+    else if(currentType==TokenType.STRING){
+      createLiteralASTNode(ASTNodeType.STRING);
     }
   }
-  
-  private boolean isCurrentToken(TokenType type, String value){
 
-    if(currentToken==null)
-      return false;
-    if(currentToken.getType()!=type || !currentToken.getValue().equals(value))
-      return false;
-    return true;
+  private boolean isEndOfInput(){
+    return currentToken>=tokens.size();
   }
-
-
   
+  /**
+   * Every keyword and operator symbol the grammar uses has its own token kind, so each grammar
+   * decision is a single comparison of the current kind.
+   */
   private boolean isCurrentTokenType(TokenType type){
-    if(currentToken==null)
-      return false;
-    if(currentToken.getType()==type)
-      return true;
-    return false;
+    return currentType==type;
   }
   
 /**
@@ -107,6 +149,10 @@ public class Parser{
  */
 
   private void buildNAryASTNode(ASTNodeType type, int numOfChildren){
+    if(arena!=null){
+      buildNAryArenaNode(type, numOfChildren);
+      return;
+    }
     ASTNode node = new ASTNode();
     node.setType(type);
     while(numOfChildren>0){
@@ -117,14 +163,60 @@ public class Parser{
       node.setSourceLineNumber(child.getSourceLineNumber());
       numOfChildren--;
     }
+    if(standardizeWhileParsing)
+      AST.standardizeNode(node);
     stack.push(node);
   }
 
+  private void buildNAryArenaNode(ASTNodeType type, int numOfChildren){
+    int node = arena.newNode(type, SymbolTable.NONE, 0);
+    int child = ASTArena.NONE;
+    while(numOfChildren>0){
+      int previousChild = child;
+      child = arenaStack[--arenaStackSize];
+      arena.setSibling(child, previousChild);
+      arena.setSourceLineNumber(node, arena.getSourceLineNumber(child));
+      numOfChildren--;
+    }
+    arena.setChild(node, child);
+    if(standardizeWhileParsing)
+      arena.standardizeNode(node);
+    pushArenaNode(node);
+  }
+
+  private void pushArenaNode(int node){
+    if(arenaStackSize==arenaStack.length)
+      arenaStack = Arrays.copyOf(arenaStack, arenaStackSize*2);
+    arenaStack[arenaStackSize++] = node;
+  }
+
+  /**
+   * Creates the node for the current INTEGER or STRING token. The compact store keeps the text
+   * interned in the SymbolTable, read straight from the source buffer.
+   */
+  private void createLiteralASTNode(ASTNodeType type){
+    if(arena!=null)
+      pushArenaNode(arena.newNode(type, tokens.internText(currentToken), tokens.getSourceLineNumber(currentToken)));
+    else
+      createTerminalASTNode(type, tokens.getString(currentToken));
+  }
+
   private void createTerminalASTNode(ASTNodeType type, String value){
+    createTerminalASTNode(type, value, SymbolTable.NONE);
+  }
+
+  private void createTerminalASTNode(ASTNodeType type, String value, int symbol){
+    if(arena!=null){
+      if(symbol==SymbolTable.NONE)
+        symbol = SymbolTable.intern(value);
+      pushArenaNode(arena.newNode(type, symbol, tokens.getSourceLineNumber(currentToken)));
+      return;
+    }
     ASTNode node = new ASTNode();
     node.setType(type);
     node.setValue(value);
-    node.setSourceLineNumber(currentToken.getSourceLineNumber());
+    node.setSymbol(symbol);
+    node.setSourceLineNumber(tokens.getSourceLineNumber(currentToken));
     stack.push(node);
   }
   
@@ -144,17 +236,17 @@ public class Parser{
    */
   private void E(){
     //E -> 'let' D 'in' E => 'let'
-    if(isCurrentToken(TokenType.RESERVED, "let")){ 
+    if(isCurrentTokenType(TokenType.LET)){ 
       eat();
       D();
-      if(!isCurrentToken(TokenType.RESERVED, "in"))
+      if(!isCurrentTokenType(TokenType.IN))
         throw new RuntimeException("E:  'in' expected");
       eat();
       E(); 
       buildNAryASTNode(ASTNodeType.LET, 2);
     }
     //E -> 'fn' Vb+ '.' E => 'lambda'
-    else if(isCurrentToken(TokenType.RESERVED, "fn")){ 
+    else if(isCurrentTokenType(TokenType.FN)){ 
       int treesToPop = 0;
       eat();
       while(isCurrentTokenType(TokenType.IDENTIFIER) || isCurrentTokenType(TokenType.L_PAREN)){
@@ -165,7 +257,7 @@ public class Parser{
       if(treesToPop==0)
         throw new RuntimeException("E: at least one 'Vb' expected");
       
-      if(!isCurrentToken(TokenType.OPERATOR, "."))
+      if(!isCurrentTokenType(TokenType.DOT))
         throw new RuntimeException("E: '.' expected");
       
       eat();
@@ -187,7 +279,7 @@ public class Parser{
     //Ew -> T
     T(); 
     //Ew -> T 'where' Dr => 'where'
-    if(isCurrentToken(TokenType.RESERVED, "where")){ 
+    if(isCurrentTokenType(TokenType.WHERE)){ 
       eat();
       DR();
       buildNAryASTNode(ASTNodeType.WHERE, 2);
@@ -207,7 +299,7 @@ public class Parser{
     TA();
     int treesToPop = 0;
     //T -> Ta (',' Ta )+ => 'tau'
-    while(isCurrentToken(TokenType.OPERATOR, ",")){ 
+    while(isCurrentTokenType(TokenType.COMMA)){ 
       eat();
       TA();
       treesToPop++;
@@ -221,15 +313,25 @@ public class Parser{
    */
   private void TA () {
     //Ta -> Tc
-    TC();
+    conditionalExpression();
     //Ta -> Ta 'aug' Tc => 'aug'
-    while(isCurrentToken(TokenType.RESERVED, "aug")){
+    while(isCurrentTokenType(TokenType.AUG)){
       eat();
-      TC();
+      conditionalExpression();
       buildNAryASTNode(ASTNodeType.AUG, 2);
     }
   }
 
+  /**
+   * Parses a Tc with whichever expression parser is selected.
+   */
+  private void conditionalExpression(){
+    if(precedenceClimbing)
+      operatorExpression();
+    else
+      TC();
+  }
+
   /**
    * Tc -> B '->' Tc '|' Tc => '->'
    *    -> B;
@@ -238,10 +340,10 @@ public class Parser{
     //Tc -> B
     B(); 
     //Tc -> B '->' Tc '|' Tc => '->'
-    if(isCurrentToken(TokenType.OPERATOR, "->")){ 
+    if(isCurrentTokenType(TokenType.ARROW)){ 
       eat();
       TC(); 
-      if(!isCurrentToken(TokenType.OPERATOR, "|"))
+      if(!isCurrentTokenType(TokenType.BAR))
         throw new RuntimeException("TC: '|' expected");
       eat();
       TC();  
@@ -261,7 +363,7 @@ public class Parser{
    */
   private void B(){
     BT(); //B -> Bt
-    while(isCurrentToken(TokenType.RESERVED, "or")){ //B -> B 'or' Bt => 'or'
+    while(isCurrentTokenType(TokenType.OR)){ //B -> B 'or' Bt => 'or'
       eat();
       BT();
       buildNAryASTNode(ASTNodeType.OR, 2);
@@ -276,7 +378,7 @@ public class Parser{
    */
   private void BT(){
     BS(); //Bt -> Bs;
-    while(isCurrentToken(TokenType.OPERATOR, "&")){ //Bt -> Bt '&' Bs => '&'
+    while(isCurrentTokenType(TokenType.AMPERSAND)){ //Bt -> Bt '&' Bs => '&'
       eat();
       BS(); // procBS()
       buildNAryASTNode(ASTNodeType.AND, 2);
@@ -290,7 +392,7 @@ public class Parser{
    
    */
   private void BS(){
-    if(isCurrentToken(TokenType.RESERVED, "not")){ //Bs -> 'not' Bp => 'not'
+    if(isCurrentTokenType(TokenType.NOT)){ //Bs -> 'not' Bp => 'not'
       eat();
       BP(); 
       buildNAryASTNode(ASTNodeType.NOT, 1);
@@ -314,36 +416,36 @@ public class Parser{
    */
   private void BP(){
     A(); //Bp -> A
-    if(isCurrentToken(TokenType.RESERVED,"gr")||isCurrentToken(TokenType.OPERATOR,">")){ //Bp -> A('gr' | '>' ) A => 'gr'
-      eat();
-      A(); 
-      buildNAryASTNode(ASTNodeType.GR, 2);
-    }
-    else if(isCurrentToken(TokenType.RESERVED,"ge")||isCurrentToken(TokenType.OPERATOR,">=")){ //Bp -> A ('ge' | '>=') A => 'ge'
-      eat();
-      A(); 
-      buildNAryASTNode(ASTNodeType.GE, 2);
-    }
-    else if(isCurrentToken(TokenType.RESERVED,"ls")||isCurrentToken(TokenType.OPERATOR,"<")){ //Bp -> A ('ls' | '<' ) A => 'ls'
-      eat();
-      A(); 
-      buildNAryASTNode(ASTNodeType.LS, 2);
-    }
-    else if(isCurrentToken(TokenType.RESERVED,"le")||isCurrentToken(TokenType.OPERATOR,"<=")){ //Bp -> A ('le' | '<=') A => 'le'
-      eat();
-      A(); 
-      buildNAryASTNode(ASTNodeType.LE, 2);
-    }
-    else if(isCurrentToken(TokenType.RESERVED,"eq")){ //Bp -> A 'eq' A => 'eq'
-      eat();
-      A(); 
-      buildNAryASTNode(ASTNodeType.EQ, 2);
-    }
-    else if(isCurrentToken(TokenType.RESERVED,"ne")){ //Bp -> A 'ne' A => 'ne'
-      eat();
-      A(); 
-      buildNAryASTNode(ASTNodeType.NE, 2);
+    ASTNodeType type;
+    switch(currentType){
+      case GR: //Bp -> A ('gr' | '>' ) A => 'gr'
+      case GREATER:
+        type = ASTNodeType.GR;
+        break;
+      case GE: //Bp -> A ('ge' | '>=') A => 'ge'
+      case GREATER_EQUAL:
+        type = ASTNodeType.GE;
+        break;
+      case LS: //Bp -> A ('ls' | '<' ) A => 'ls'
+      case LESS:
+        type = ASTNodeType.LS;
+        break;
+      case LE: //Bp -> A ('le' | '<=') A => 'le'
+      case LESS_EQUAL:
+        type = ASTNodeType.LE;
+        break;
+      case EQ: //Bp -> A 'eq' A => 'eq'
+        type = ASTNodeType.EQ;
+        break;
+      case NE: //Bp -> A 'ne' A => 'ne'
+        type = ASTNodeType.NE;
+        break;
+      default:
+        return;
     }
+    eat();
+    A(); 
+    buildNAryASTNode(type, 2);
   }
   
   
@@ -361,11 +463,11 @@ public class Parser{
    
    */
   private void A(){
-    if(isCurrentToken(TokenType.OPERATOR, "+")){ //A -> '+' At
+    if(isCurrentTokenType(TokenType.PLUS)){ //A -> '+' At
       eat();
       AT(); 
     }
-    else if(isCurrentToken(TokenType.OPERATOR, "-")){ //A -> '-' At => 'neg'
+    else if(isCurrentTokenType(TokenType.MINUS)){ //A -> '-' At => 'neg'
       eat();
       AT(); 
       buildNAryASTNode(ASTNodeType.NEG, 1);
@@ -373,18 +475,13 @@ public class Parser{
     else
       AT(); 
     
-    boolean plus = true;
-    while(isCurrentToken(TokenType.OPERATOR, "+")||isCurrentToken(TokenType.OPERATOR, "-")){
-      if(currentToken.getValue().equals("+"))
-        plus = true;
-      else if(currentToken.getValue().equals("-"))
-        plus = false;
+    while(isCurrentTokenType(TokenType.PLUS)||isCurrentTokenType(TokenType.MINUS)){
+      //A -> A '+' At => '+'
+      //A -> A '-' At => '-'
+      ASTNodeType type = isCurrentTokenType(TokenType.PLUS)? ASTNodeType.PLUS : ASTNodeType.MINUS;
       eat();
       AT(); 
-      if(plus) //A -> A '+' At => '+'
-        buildNAryASTNode(ASTNodeType.PLUS, 2);
-      else //A -> A '-' At => '-'
-        buildNAryASTNode(ASTNodeType.MINUS, 2);
+      buildNAryASTNode(type, 2);
     }
   }
   
@@ -398,18 +495,13 @@ public class Parser{
   private void AT(){
     AF(); //At -> Af;
     
-    boolean mult = true;
-    while(isCurrentToken(TokenType.OPERATOR, "*")||isCurrentToken(TokenType.OPERATOR, "/")){
-      if(currentToken.getValue().equals("*"))
-        mult = true;
-      else if(currentToken.getValue().equals("/"))
-        mult = false;
+    while(isCurrentTokenType(TokenType.TIMES)||isCurrentTokenType(TokenType.DIVIDE)){
+      //At -> At '*' Af => '*'
+      //At -> At '/' Af => '/'
+      ASTNodeType type = isCurrentTokenType(TokenType.TIMES)? ASTNodeType.MULT : ASTNodeType.DIV;
       eat();
       AF(); 
-      if(mult) //At -> At '*' Af => '*'
-        buildNAryASTNode(ASTNodeType.MULT, 2);
-      else //At -> At '/' Af => '/'
-        buildNAryASTNode(ASTNodeType.DIV, 2);
+      buildNAryASTNode(type, 2);
     }
   }
   
@@ -422,7 +514,7 @@ public class Parser{
   private void AF(){
     AP(); // Af -> Ap;
     
-    if(isCurrentToken(TokenType.OPERATOR, "**")){ //Af -> Ap '**' Af => '**'
+    if(isCurrentTokenType(TokenType.POWER)){ //Af -> Ap '**' Af => '**'
       eat();
       AF();
       buildNAryASTNode(ASTNodeType.EXP, 2);
@@ -439,7 +531,7 @@ public class Parser{
   private void AP(){
     R(); //Ap -> R;
     
-    while(isCurrentToken(TokenType.OPERATOR, "@")){ //Ap -> Ap '@' '<IDENTIFIER>' R => '@'
+    while(isCurrentTokenType(TokenType.AT)){ //Ap -> Ap '@' '<IDENTIFIER>' R => '@'
       eat();
       if(!isCurrentTokenType(TokenType.IDENTIFIER))
         throw new RuntimeException("AP: expected Identifier");
@@ -449,6 +541,228 @@ public class Parser{
     }
   }
   
+  /******************************
+   * Operator expressions by precedence climbing
+   *******************************/
+
+  /*
+   * Binding strength of the pending operators. THEN is a '->' still waiting for its '|'; once the
+   * '|' is seen it becomes a CONDITIONAL waiting for its else branch. A '+' in prefix position
+   * is pushed with a null type at NEG strength: it builds no node but binds like '-'.
+   */
+  private static final int PREC_THEN = 0;
+  private static final int PREC_CONDITIONAL = 1;
+  private static final int PREC_OR = 2;
+  private static final int PREC_AND = 3;
+  private static final int PREC_NOT = 4;
+  private static final int PREC_COMPARISON = 5;
+  private static final int PREC_ADD = 6;
+  private static final int PREC_NEG = 7;
+  private static final int PREC_MULT = 8;
+  private static final int PREC_EXP = 9;
+  private static final int PREC_AT = 10;
+
+  private ASTNodeType[] pendingOperators = new ASTNodeType[16];
+  private int[] pendingPrecedences = new int[16];
+  private int numPendingOperators;
+
+  /**
+   * Parses a Tc, i.e. everything from conditionals down to Ap, by precedence climbing. Operands
+   * are parsed by {@link #R()}, which already handles application iteratively; operators wait on
+   * an explicit stack until an operator that binds less tightly (or the end of the expression)
+   * reduces them with buildNAryASTNode, so the nodes are built in the same order as the
+   * recursive descent methods build them. Java recursion only happens for parenthesized
+   * subexpressions.
+   *
+   * A prefix operator where the grammar does not allow one is handed to R(), exactly as the
+   * recursive descent methods would.
+   */
+  private void operatorExpression(){
+    int base = numPendingOperators; //operators below base belong to an enclosing expression
+    
+    while(true){
+      //operand position
+      int top = topPrecedence(base);
+      if(isCurrentTokenType(TokenType.NOT) && top<PREC_NOT){ //Bs -> 'not' Bp => 'not'
+        eat();
+        pushOperator(ASTNodeType.NOT, PREC_NOT);
+        continue;
+      }
+      if(isCurrentTokenType(TokenType.MINUS) && top<=PREC_COMPARISON){ //A -> '-' At => 'neg'
+        eat();
+        pushOperator(ASTNodeType.NEG, PREC_NEG);
+        continue;
+      }
+      if(isCurrentTokenType(TokenType.PLUS) && top<=PREC_COMPARISON){ //A -> '+' At
+        eat();
+        pushOperator(null, PREC_NEG);
+        continue;
+      }
+      R();
+      
+      //operator position
+      ASTNodeType type;
+      int precedence;
+      switch(currentType){
+        case ARROW: //Tc -> B '->' Tc '|' Tc => '->'
+          reduceOperators(base, PREC_OR);
+          eat();
+          pushOperator(ASTNodeType.CONDITIONAL, PREC_THEN);
+          continue;
+        case BAR:
+          if(closeThenBranch(base)){
+            eat();
+            continue;
+          }
+          type = null; //not our '|'
+          precedence = -1;
+          break;
+        case OR: //B -> B 'or' Bt => 'or'
+          type = ASTNodeType.OR;
+          precedence = PREC_OR;
+          break;
+        case AMPERSAND: //Bt -> Bt '&' Bs => '&'
+          type = ASTNodeType.AND;
+          precedence = PREC_AND;
+          break;
+        case GR:
+        case GREATER:
+          type = ASTNodeType.GR;
+          precedence = PREC_COMPARISON;
+          break;
+        case GE:
+        case GREATER_EQUAL:
+          type = ASTNodeType.GE;
+          precedence = PREC_COMPARISON;
+          break;
+        case LS:
+        case LESS:
+          type = ASTNodeType.LS;
+          precedence = PREC_COMPARISON;
+          break;
+        case LE:
+        case LESS_EQUAL:
+          type = ASTNodeType.LE;
+          precedence = PREC_COMPARISON;
+          break;
+        case EQ:
+          type = ASTNodeType.EQ;
+          precedence = PREC_COMPARISON;
+          break;
+        case NE:
+          type = ASTNodeType.NE;
+          precedence = PREC_COMPARISON;
+          break;
+        case PLUS: //A -> A '+' At => '+'
+          type = ASTNodeType.PLUS;
+          precedence = PREC_ADD;
+          break;
+        case MINUS: //A -> A '-' At => '-'
+          type = ASTNodeType.MINUS;
+          precedence = PREC_ADD;
+          break;
+        case TIMES: //At -> At '*' Af => '*'
+          type = ASTNodeType.MULT;
+          precedence = PREC_MULT;
+          break;
+        case DIVIDE: //At -> At '/' Af => '/'
+          type = ASTNodeType.DIV;
+          precedence = PREC_MULT;
+          break;
+        case POWER: //Af -> Ap '**' Af => '**' (right associative)
+          type = ASTNodeType.EXP;
+          precedence = PREC_EXP;
+          break;
+        case AT: //Ap -> Ap '@' '<IDENTIFIER>' R => '@'
+          type = ASTNodeType.AT;
+          precedence = PREC_AT;
+          break;
+        default:
+          type = null;
+          precedence = -1;
+          break;
+      }
+      if(type==null)
+        break;
+      
+      //left associative operators reduce pending operators of equal strength; '**' is right
+      //associative, and comparisons do not associate at all (Bp -> A 'gr' A), so a pending
+      //comparison means this one ends the expression
+      if(type==ASTNodeType.EXP || precedence==PREC_COMPARISON)
+        reduceOperators(base, precedence+1);
+      else
+        reduceOperators(base, precedence);
+      if(precedence==PREC_COMPARISON && topPrecedence(base)==PREC_COMPARISON)
+        break;
+      eat();
+      if(type==ASTNodeType.AT){
+        if(!isCurrentTokenType(TokenType.IDENTIFIER))
+          throw new RuntimeException("AP: expected Identifier");
+        eat();
+      }
+      pushOperator(type, precedence);
+    }
+    
+    reduceOperators(base, PREC_CONDITIONAL);
+    if(numPendingOperators>base)
+      throw new RuntimeException("TC: '|' expected");
+  }
+
+  private int topPrecedence(int base){
+    if(numPendingOperators==base)
+      return -1;
+    return pendingPrecedences[numPendingOperators-1];
+  }
+
+  private void pushOperator(ASTNodeType type, int precedence){
+    if(numPendingOperators==pendingOperators.length){
+      pendingOperators = Arrays.copyOf(pendingOperators, numPendingOperators*2);
+      pendingPrecedences = Arrays.copyOf(pendingPrecedences, numPendingOperators*2);
+    }
+    pendingOperators[numPendingOperators] = type;
+    pendingPrecedences[numPendingOperators] = precedence;
+    numPendingOperators++;
+  }
+
+  /**
+   * Builds the nodes of the pending operators that bind at least as tightly as minPrecedence.
+   */
+  private void reduceOperators(int base, int minPrecedence){
+    while(topPrecedence(base)>=minPrecedence){
+      numPendingOperators--;
+      ASTNodeType type = pendingOperators[numPendingOperators];
+      pendingOperators[numPendingOperators] = null;
+      if(type==null) //prefix '+'
+        continue;
+      switch(type){
+        case NOT:
+        case NEG:
+          buildNAryASTNode(type, 1);
+          break;
+        case CONDITIONAL:
+        case AT:
+          buildNAryASTNode(type, 3);
+          break;
+        default:
+          buildNAryASTNode(type, 2);
+          break;
+      }
+    }
+  }
+
+  /**
+   * Handles a '|': completes the conditionals whose else branch just ended, then turns the
+   * innermost '->' still waiting for its '|' into a conditional waiting for its else branch.
+   * @return false if there is no such '->', i.e. the '|' ends this expression
+   */
+  private boolean closeThenBranch(int base){
+    reduceOperators(base, PREC_CONDITIONAL);
+    if(topPrecedence(base)!=PREC_THEN)
+      return false;
+    pendingPrecedences[numPendingOperators-1] = PREC_CONDITIONAL;
+    return true;
+  }
+
   /******************************
    * Rators and Rands
    *******************************/
@@ -462,14 +776,7 @@ public class Parser{
   private void R(){
     RN(); //R -> Rn; NO extra readNT in procRN(). See while loop below for reason.
     eat();
-    while(isCurrentTokenType(TokenType.INTEGER)||
-        isCurrentTokenType(TokenType.STRING)|| 
-        isCurrentTokenType(TokenType.IDENTIFIER)||
-        isCurrentToken(TokenType.RESERVED, "true")||
-        isCurrentToken(TokenType.RESERVED, "false")||
-        isCurrentToken(TokenType.RESERVED, "nil")||
-        isCurrentToken(TokenType.RESERVED, "dummy")||
-        isCurrentTokenType(TokenType.L_PAREN)){ //R -> R Rn => 'gamma'
+    while(startsRand()){ //R -> R Rn => 'gamma'
       RN(); 
       buildNAryASTNode(ASTNodeType.GAMMA, 2);
       eat();
@@ -490,27 +797,50 @@ public class Parser{
   
    */
   private void RN(){
-    if(isCurrentTokenType(TokenType.IDENTIFIER)|| //R -> '<IDENTIFIER>'
-       isCurrentTokenType(TokenType.INTEGER)|| //R -> '<INTEGER>' 
-       isCurrentTokenType(TokenType.STRING)){ //R-> '<STRING>'
-    }
-    else if(isCurrentToken(TokenType.RESERVED, "true")){ //R -> 'true' => 'true'
-      createTerminalASTNode(ASTNodeType.TRUE, "true");
-    }
-    else if(isCurrentToken(TokenType.RESERVED, "false")){ //R -> 'false' => 'false'
-      createTerminalASTNode(ASTNodeType.FALSE, "false");
-    } 
-    else if(isCurrentToken(TokenType.RESERVED, "nil")){ //R -> 'nil' => 'nil'
-      createTerminalASTNode(ASTNodeType.NIL, "nil");
-    }
-    else if(isCurrentTokenType(TokenType.L_PAREN)){
-      eat();
-      E(); 
-      if(!isCurrentTokenType(TokenType.R_PAREN))
-        throw new RuntimeException("RN: ')' expected");
+    switch(currentType){
+      case IDENTIFIER: //R -> '<IDENTIFIER>'
+      case INTEGER: //R -> '<INTEGER>' 
+      case STRING: //R-> '<STRING>'
+        break;
+      case TRUE: //R -> 'true' => 'true'
+        createTerminalASTNode(ASTNodeType.TRUE, "true");
+        break;
+      case FALSE: //R -> 'false' => 'false'
+        createTerminalASTNode(ASTNodeType.FALSE, "false");
+        break;
+      case NIL: //R -> 'nil' => 'nil'
+        createTerminalASTNode(ASTNodeType.NIL, "nil");
+        break;
+      case L_PAREN:
+        eat();
+        E(); 
+        if(!isCurrentTokenType(TokenType.R_PAREN))
+          throw new RuntimeException("RN: ')' expected");
+        break;
+      case DUMMY: //R -> 'dummy' => 'dummy'
+        createTerminalASTNode(ASTNodeType.DUMMY, "dummy");
+        break;
+      default:
+        break;
     }
-    else if(isCurrentToken(TokenType.RESERVED, "dummy")){ //R -> 'dummy' => 'dummy'
-      createTerminalASTNode(ASTNodeType.DUMMY, "dummy");
+  }
+
+  /**
+   * Whether the current token can start an Rn.
+   */
+  private boolean startsRand(){
+    switch(currentType){
+      case IDENTIFIER:
+      case INTEGER:
+      case STRING:
+      case TRUE:
+      case FALSE:
+      case NIL:
+      case DUMMY:
+      case L_PAREN:
+        return true;
+      default:
+        return false;
     }
   }
 
@@ -527,7 +857,7 @@ public class Parser{
   private void D(){
     DA(); //D -> Da
     
-    if(isCurrentToken(TokenType.RESERVED, "within")){ //D -> Da 'within' D => 'within'
+    if(isCurrentTokenType(TokenType.WITHIN)){ //D -> Da 'within' D => 'within'
       eat();
       D();
       buildNAryASTNode(ASTNodeType.WITHIN, 2);
@@ -544,7 +874,7 @@ public class Parser{
     DR(); //Da -> Dr
     
     int treesToPop = 0;
-    while(isCurrentToken(TokenType.RESERVED, "and")){ //Da -> Dr ( 'and' Dr )+ => 'and'
+    while(isCurrentTokenType(TokenType.AND)){ //Da -> Dr ( 'and' Dr )+ => 'and'
       eat();
       DR(); 
       treesToPop++;
@@ -557,7 +887,7 @@ public class Parser{
    *    -> Db;
    */
   private void DR(){
-    if(isCurrentToken(TokenType.RESERVED, "rec")){ //Dr -> 'rec' Db => 'rec'
+    if(isCurrentTokenType(TokenType.REC)){ //Dr -> 'rec' Db => 'rec'
       eat();
       DB(); 
       buildNAryASTNode(ASTNodeType.REC, 1);
@@ -584,11 +914,11 @@ public class Parser{
     }
     else if(isCurrentTokenType(TokenType.IDENTIFIER)){
       eat();
-      if(isCurrentToken(TokenType.OPERATOR, ",")){ //Db -> Vl '=' E => '='
+      if(isCurrentTokenType(TokenType.COMMA)){ //Db -> Vl '=' E => '='
         eat();
         VL(); 
         
-        if(!isCurrentToken(TokenType.OPERATOR, "="))
+        if(!isCurrentTokenType(TokenType.EQUALS))
           throw new RuntimeException("DB: = expected.");
         buildNAryASTNode(ASTNodeType.COMMA, 2);
         eat();
@@ -596,7 +926,7 @@ public class Parser{
         buildNAryASTNode(ASTNodeType.EQUAL, 2);
       }
       else{ //Db -> '<IDENTIFIER>' Vb+ '=' E => 'fcn_form'
-        if(isCurrentToken(TokenType.OPERATOR, "=")){ //Db -> Vl '=' E => '='; if Vl had only one IDENTIFIER (no commas)
+        if(isCurrentTokenType(TokenType.EQUALS)){ //Db -> Vl '=' E => '='; if Vl had only one IDENTIFIER (no commas)
           eat();
           E(); 
           buildNAryASTNode(ASTNodeType.EQUAL, 2);
@@ -612,7 +942,7 @@ public class Parser{
           if(treesToPop==0)
             throw new RuntimeException("E: at least one 'Vb' expected");
 
-          if(!isCurrentToken(TokenType.OPERATOR, "="))
+          if(!isCurrentTokenType(TokenType.EQUALS))
             throw new RuntimeException("DB: = expected.");
 
           eat();
@@ -642,7 +972,7 @@ public class Parser{
     else if(isCurrentTokenType(TokenType.L_PAREN)){
       eat();
       if(isCurrentTokenType(TokenType.R_PAREN)){ //Vb -> '(' ')' => '()'
-        createTerminalASTNode(ASTNodeType.PAREN, "");
+        createTerminalASTNode(ASTNodeType.PAREN, "", SymbolTable.intern(""));
         eat();
       }
       else{ //Vb -> '(' Vl ')'
@@ -665,7 +995,7 @@ public class Parser{
     else{
       eat();
       int treesToPop = 0;
-      while(isCurrentToken(TokenType.OPERATOR, ",")){ //Vl -> '<IDENTIFIER>' list ',' => ','?;
+      while(isCurrentTokenType(TokenType.COMMA)){ //Vl -> '<IDENTIFIER>' list ',' => ','?;
         eat();
         if(!isCurrentTokenType(TokenType.IDENTIFIER))
           throw new RuntimeException("VL: Identifier expected");
@@ -0,0 +1,214 @@
+package rpal;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+/**
+ * On-disk cache of standardized trees. Each entry is a file in the cache directory named after
+ * the SHA-256 hash of the program source and the interpreter version, so an unchanged program
+ * can be loaded straight into an {@link ASTArena} without lexing, parsing or standardizing it.
+ *
+ * An entry holds the names used by the tree followed by its nodes in preorder: type, flags
+ * saying whether the node has a child, a sibling and a value, the index of its value in the
+ * names and its source line number. A missing, unreadable or outdated entry is just a miss.
+ */
+public class ProgramCache{
+  /**
+   * Part of every key. Change it whenever the parser or the standardizer build a different
+   * tree, so that entries written by older interpreters are no longer found.
+   */
+  public static final String INTERPRETER_VERSION = "rpal20-1";
+
+  private static final int MAGIC = 0x5250414c; //"RPAL"
+  private static final int FORMAT_VERSION = 1;
+
+  private static final int HAS_CHILD = 1;
+  private static final int HAS_SIBLING = 2;
+  private static final int HAS_VALUE = 4;
+
+  private static final ASTNodeType[] nodeTypes = ASTNodeType.values();
+
+  private File directory;
+
+  public ProgramCache(String directory){
+    this.directory = new File(directory);
+  }
+
+  /**
+   * Returns the cache key of the program in the given file.
+   */
+  public String computeKey(String fileName) throws IOException{
+    MessageDigest digest;
+    try{
+      digest = MessageDigest.getInstance("SHA-256");
+    }catch(NoSuchAlgorithmException e){
+      throw new RuntimeException("SHA-256 is not available", e);
+    }
+    digest.update(INTERPRETER_VERSION.getBytes(StandardCharsets.UTF_8));
+    digest.update((byte)0);
+    try(InputStream in = new FileInputStream(fileName)){
+      byte[] buffer = new byte[8192];
+      int read;
+      while((read = in.read(buffer))>0)
+        digest.update(buffer, 0, read);
+    }
+
+    StringBuilder key = new StringBuilder();
+    for(byte b: digest.digest())
+      key.append(String.format("%02x", b));
+    return key.toString();
+  }
+
+  /**
+   * Returns the standardized tree stored under the given key, or null if there is none.
+   */
+  public AST load(String key){
+    File entry = new File(directory, key);
+    if(!entry.isFile())
+      return null;
+    try(DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(entry)))){
+      AST ast = read(in);
+      ast.setStandardized(true);
+      return ast;
+    }catch(IOException | RuntimeException e){
+      return null; //treat a damaged entry as a miss
+    }
+  }
+
+  /**
+   * Stores the standardized tree under the given key. The entry is written to a temporary file
+   * and renamed into place, so concurrent runs never see half an entry. Failures are ignored:
+   * the cache only ever saves work.
+   */
+  public void store(String key, AST ast){
+    if(!ast.isStandardized())
+      throw new IllegalArgumentException("Only standardized trees are cached");
+    ast.compact();
+    File temporary = null;
+    try{
+      directory.mkdirs();
+      temporary = File.createTempFile(key, ".tmp", directory);
+      try(DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)))){
+        write(ast.getArena(), ast.getArenaRoot(), out);
+      }
+      if(!temporary.renameTo(new File(directory, key)))
+        temporary.delete();
+    }catch(IOException e){
+      if(temporary!=null)
+        temporary.delete();
+    }
+  }
+
+  private void write(ASTArena arena, int root, DataOutputStream out) throws IOException{
+    //preorder, with the names numbered in order of first use
+    int[] preOrder = new int[arena.size()];
+    int count = 0;
+    int[] nameIndices = new int[64]; //SymbolTable id -> 1 + index in names; 0 if not yet used
+    String[] names = new String[16];
+    int numNames = 0;
+    int[] stack = new int[16];
+    int top = 0;
+    stack[top++] = root;
+    while(top>0){
+      int node = stack[--top];
+      preOrder[count++] = node;
+      int value = arena.getValue(node);
+      if(value!=SymbolTable.NONE){
+        if(value>=nameIndices.length)
+          nameIndices = Arrays.copyOf(nameIndices, Math.max(value+1, nameIndices.length*2));
+        if(nameIndices[value]==0){
+          if(numNames==names.length)
+            names = Arrays.copyOf(names, numNames*2);
+          names[numNames++] = SymbolTable.getName(value);
+          nameIndices[value] = numNames;
+        }
+      }
+      if(top+2>stack.length)
+        stack = Arrays.copyOf(stack, stack.length*2);
+      if(node!=root && arena.getSibling(node)!=ASTArena.NONE)
+        stack[top++] = arena.getSibling(node);
+      if(arena.getChild(node)!=ASTArena.NONE)
+        stack[top++] = arena.getChild(node);
+    }
+
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeInt(numNames);
+    for(int i = 0; i < numNames; i++){
+      byte[] bytes = names[i].getBytes(StandardCharsets.UTF_8);
+      out.writeInt(bytes.length);
+      out.write(bytes);
+    }
+    out.writeInt(count);
+    for(int i = 0; i < count; i++){
+      int node = preOrder[i];
+      int flags = 0;
+      if(arena.getChild(node)!=ASTArena.NONE)
+        flags |= HAS_CHILD;
+      if(node!=root && arena.getSibling(node)!=ASTArena.NONE)
+        flags |= HAS_SIBLING;
+      if(arena.getValue(node)!=SymbolTable.NONE)
+        flags |= HAS_VALUE;
+      out.writeByte(arena.getType(node).ordinal());
+      out.writeByte(flags);
+      if((flags & HAS_VALUE)!=0)
+        out.writeInt(nameIndices[arena.getValue(node)]-1);
+      out.writeInt(arena.getSourceLineNumber(node));
+    }
+  }
+
+  private AST read(DataInputStream in) throws IOException{
+    if(in.readInt()!=MAGIC || in.readInt()!=FORMAT_VERSION)
+      throw new IOException("Not a cache entry of this version");
+    int[] symbols = new int[in.readInt()];
+    for(int i = 0; i < symbols.length; i++){
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      symbols[i] = SymbolTable.intern(new String(bytes, StandardCharsets.UTF_8));
+    }
+
+    int count = in.readInt();
+    ASTArena arena = new ASTArena(Math.max(count, 1));
+    //nodes that have a sibling still to come after their subtree
+    int[] pendingSiblings = new int[16];
+    int numPending = 0;
+    int previous = ASTArena.NONE;
+    int previousFlags = 0;
+    for(int i = 0; i < count; i++){
+      ASTNodeType type = nodeTypes[in.readByte()];
+      int flags = in.readByte();
+      int value = (flags & HAS_VALUE)!=0? symbols[in.readInt()] : SymbolTable.NONE;
+      int node = arena.newNode(type, value, in.readInt());
+
+      if(previous!=ASTArena.NONE){
+        if((previousFlags & HAS_CHILD)!=0){
+          arena.setChild(previous, node);
+          if((previousFlags & HAS_SIBLING)!=0){
+            if(numPending==pendingSiblings.length)
+              pendingSiblings = Arrays.copyOf(pendingSiblings, numPending*2);
+            pendingSiblings[numPending++] = previous;
+          }
+        }
+        else if((previousFlags & HAS_SIBLING)!=0)
+          arena.setSibling(previous, node);
+        else
+          arena.setSibling(pendingSiblings[--numPending], node);
+      }
+      previous = node;
+      previousFlags = flags;
+    }
+    if(count==0 || numPending!=0 || (previousFlags & (HAS_CHILD|HAS_SIBLING))!=0)
+      throw new IOException("Truncated cache entry");
+    return new AST(arena, 0);
+  }
+}
@@ -0,0 +1,178 @@
+package rpal;
+import java.util.Arrays;
+
+/**
+ * Global table of interned identifier names. Every distinct name gets a dense integer id the
+ * first time the scanner sees it, so the parser and the CSE machine can compare and look up
+ * identifiers by id instead of by String.
+ *
+ * The reserved words and the builtin identifiers have fixed ids (the constants below) and are
+ * resolved through a perfect hash over their first, middle and last characters and their length.
+ * All other names go through an open addressing table keyed by the usual String hash code, so
+ * interning a name straight from the source buffer does not allocate once it has been seen.
+ */
+class SymbolTable{
+  public static final int NONE = 0;
+
+  //Reserved words
+  public static final int LET = 1;
+  public static final int IN = 2;
+  public static final int WITHIN = 3;
+  public static final int FN = 4;
+  public static final int WHERE = 5;
+  public static final int AUG = 6;
+  public static final int OR = 7;
+  public static final int NOT = 8;
+  public static final int GR = 9;
+  public static final int GE = 10;
+  public static final int LS = 11;
+  public static final int LE = 12;
+  public static final int EQ = 13;
+  public static final int NE = 14;
+  public static final int TRUE = 15;
+  public static final int FALSE = 16;
+  public static final int NIL = 17;
+  public static final int DUMMY = 18;
+  public static final int REC = 19;
+  public static final int AND = 20;
+
+  //Builtin identifiers. Note how this list is different from the reserved words above
+  public static final int ISINTEGER = 21;
+  public static final int ISSTRING = 22;
+  public static final int ISTUPLE = 23;
+  public static final int ISDUMMY = 24;
+  public static final int ISTRUTHVALUE = 25;
+  public static final int ISFUNCTION = 26;
+  public static final int ITOS = 27;
+  public static final int ORDER = 28;
+  public static final int CONC = 29;
+  public static final int CONC_LOWERCASE = 30; //typos
+  public static final int STERN = 31;
+  public static final int STEM = 32;
+  public static final int NULL = 33;
+  public static final int PRINT = 34;
+  public static final int PRINT_LOWERCASE = 35; //typos
+  public static final int NEG = 36;
+
+  private static final String[] predefinedNames = {null,
+    "let","in","within","fn","where","aug","or","not","gr","ge","ls","le","eq","ne","true","false","nil","dummy","rec","and",
+    "Isinteger","Isstring","Istuple","Isdummy","Istruthvalue","Isfunction","ItoS","Order","Conc","conc","Stern","Stem",
+    "Null","Print","print","neg"};
+
+  //perfect hash of the predefined names: (mix * PERFECT_HASH_SEED) >>> PERFECT_HASH_SHIFT
+  private static final int PERFECT_HASH_SEED = 168471;
+  private static final int PERFECT_HASH_SHIFT = 25;
+  private static final int[] predefinedTable = new int[1<<(32-PERFECT_HASH_SHIFT)];
+
+  private static String[] names = new String[256];
+  private static int[] nameHashes = new int[256];
+  private static int size;
+  private static int[] internTable = new int[512]; //id of the name in each slot, NONE if empty
+
+  static{
+    for(int id = 1; id < predefinedNames.length; id++){
+      String name = predefinedNames[id];
+      int slot = perfectHash(name.charAt(0), name.charAt(name.length()/2), name.charAt(name.length()-1), name.length());
+      if(predefinedTable[slot]!=NONE)
+        throw new IllegalStateException("Perfect hash collision between \""+name+"\" and \""+predefinedNames[predefinedTable[slot]]+"\"");
+      predefinedTable[slot] = id;
+      names[id] = name;
+      nameHashes[id] = name.hashCode();
+    }
+    size = predefinedNames.length;
+  }
+
+  private static int perfectHash(char first, char middle, char last, int length){
+    int mix = first*961 + middle*31 + last + length*29791;
+    return (mix*PERFECT_HASH_SEED)>>>PERFECT_HASH_SHIFT;
+  }
+
+  /**
+   * Returns the id of the name held in buffer[start, start+length), interning it if needed.
+   */
+  public static int intern(char[] buffer, int start, int length){
+    int id = lookupPredefined(buffer, start, length);
+    if(id!=NONE)
+      return id;
+
+    int hash = 0;
+    for(int i = 0; i < length; i++)
+      hash = 31*hash + buffer[start+i];
+
+    int mask = internTable.length-1;
+    int slot = hash & mask;
+    while(internTable[slot]!=NONE){
+      int candidate = internTable[slot];
+      if(nameHashes[candidate]==hash && regionEquals(names[candidate], buffer, start, length))
+        return candidate;
+      slot = (slot+1) & mask;
+    }
+    return addName(new String(buffer, start, length), hash);
+  }
+
+  public static int intern(String name){
+    return intern(name.toCharArray(), 0, name.length());
+  }
+
+  private static int lookupPredefined(char[] buffer, int start, int length){
+    if(length==0)
+      return NONE;
+    int id = predefinedTable[perfectHash(buffer[start], buffer[start+length/2], buffer[start+length-1], length)];
+    if(id!=NONE && regionEquals(names[id], buffer, start, length))
+      return id;
+    return NONE;
+  }
+
+  private static boolean regionEquals(String name, char[] buffer, int start, int length){
+    if(name.length()!=length)
+      return false;
+    for(int i = 0; i < length; i++){
+      if(name.charAt(i)!=buffer[start+i])
+        return false;
+    }
+    return true;
+  }
+
+  private static int addName(String name, int hash){
+    if(size==names.length){
+      names = Arrays.copyOf(names, size*2);
+      nameHashes = Arrays.copyOf(nameHashes, size*2);
+    }
+    int id = size++;
+    names[id] = name;
+    nameHashes[id] = hash;
+
+    //keep the table at most half full
+    if(2*(size-predefinedNames.length)>internTable.length)
+      rehash();
+    else
+      insert(id);
+    return id;
+  }
+
+  private static void rehash(){
+    internTable = new int[internTable.length*2];
+    for(int id = predefinedNames.length; id < size; id++)
+      insert(id);
+  }
+
+  private static void insert(int id){
+    int mask = internTable.length-1;
+    int slot = nameHashes[id] & mask;
+    while(internTable[slot]!=NONE)
+      slot = (slot+1) & mask;
+    internTable[slot] = id;
+  }
+
+  public static String getName(int id){
+    return names[id];
+  }
+
+  public static boolean isReservedWord(int id){
+    return id>=LET && id<=AND;
+  }
+
+  public static boolean isBuiltin(int id){
+    return id>=ISINTEGER && id<=NEG;
+  }
+}
@@ -7,15 +7,25 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 
 import rpal.AST;
+import rpal.BytecodeMachine;
 import rpal.CSEMachine;
+import rpal.NodeInterpreter;
 
 import rpal.Parser;
+import rpal.ProgramCache;
 import rpal.LexicalAnalyzer;
 
 
 public class rpal20 {
 
   public static String fileName;
+  private static boolean prattFlag;
+  private static boolean compactFlag;
+  private static boolean vmFlag;
+  private static int jitThreshold; //0 unless -jit is given
+  private static boolean nodesFlag;
+  private static String cacheDirectory; //null unless -cache is given
+  private static boolean standardizeWhileParsing;
 
   public static void main(String[] args){
     boolean listFlag = false;
@@ -38,14 +48,40 @@ public class rpal20 {
         stFlag = true;
       else if(cmdOption.equals("-noout"))
         noOutFlag = true;
+      else if(cmdOption.equals("-pratt"))
+        prattFlag = true;
+      else if(cmdOption.equals("-compact"))
+        compactFlag = true;
+      else if(cmdOption.equals("-vm"))
+        vmFlag = true;
+      else if(cmdOption.equals("-nodes"))
+        nodesFlag = true;
+      else if(cmdOption.equals("-jit")){
+        vmFlag = true;
+        jitThreshold = 100;
+      }
+      else if(cmdOption.startsWith("-jit=")){
+        vmFlag = true;
+        jitThreshold = parseJitThreshold(cmdOption.substring("-jit=".length()));
+        if(jitThreshold<1){
+          printHelp();
+          return;
+        }
+      }
+      else if(cmdOption.equals("-cache"))
+        cacheDirectory = ".rpalcache";
+      else if(cmdOption.startsWith("-cache="))
+        cacheDirectory = cmdOption.substring("-cache=".length());
       else
         fileName = cmdOption;
     }
     
+    //the unstandardized tree is only needed to print it
+    standardizeWhileParsing = !astFlag;
+    
     //calling P2 without any switches should evaluate the program and print the result
     if(!listFlag && !astFlag && !stFlag && !noOutFlag){
-      ast = buildAST(fileName, true);
-      ast.standardize();
+      ast = buildStandardizedAST(fileName);
       evaluateST(ast);
       return;
     }
@@ -70,8 +106,7 @@ public class rpal20 {
     if(stFlag){
       if(fileName.isEmpty())
         throw new RuntimeException("Please specify a file. Call P2 with -help to see examples");
-      ast = buildAST(fileName, true);
-      ast.standardize();
+      ast = buildStandardizedAST(fileName);
       printAST(ast);
       if(noOutFlag)
         return;
@@ -87,8 +122,18 @@ public class rpal20 {
   }
 
   private static void evaluateST(AST ast){
-    CSEMachine csem = new CSEMachine(ast);
-    csem.evaluateProgram();
+    if(nodesFlag){
+      NodeInterpreter interpreter = new NodeInterpreter(ast);
+      interpreter.evaluateProgram();
+    }
+    else if(vmFlag){
+      BytecodeMachine vm = new BytecodeMachine(ast, jitThreshold, fileName);
+      vm.evaluateProgram();
+    }
+    else{
+      CSEMachine csem = new CSEMachine(ast);
+      csem.evaluateProgram();
+    }
     System.out.println();
   }
 
@@ -117,6 +162,9 @@ public class rpal20 {
     try{
       LexicalAnalyzer scanner = new LexicalAnalyzer(fileName);
       Parser parser = new Parser(scanner);
+      parser.setPrecedenceClimbing(prattFlag);
+      parser.setCompactAST(compactFlag);
+      parser.setStandardizeWhileParsing(standardizeWhileParsing);
       ast = parser.buildAST();
     }catch(IOException e){
       throw new RuntimeException("ERROR: Could not read from file: " + fileName);
@@ -124,10 +172,48 @@ public class rpal20 {
     return ast;
   }
 
+  /**
+   * Builds and standardizes the AST, or loads the standardized tree from the cache if -cache
+   * is given and the program has not changed since it was stored.
+   */
+  private static AST buildStandardizedAST(String fileName){
+    if(cacheDirectory==null){
+      AST ast = buildAST(fileName, true);
+      ast.standardize();
+      return ast;
+    }
+    
+    ProgramCache cache = new ProgramCache(cacheDirectory);
+    String key;
+    try{
+      key = cache.computeKey(fileName);
+    }catch(IOException e){
+      throw new RuntimeException("ERROR: Could not read from file: " + fileName);
+    }
+    AST ast = cache.load(key);
+    if(ast==null){
+      ast = buildAST(fileName, true);
+      ast.standardize();
+      cache.store(key, ast);
+    }
+    return ast;
+  }
+
   private static void printAST(AST ast){
     ast.printAST();
   }
 
+  /**
+   * Returns the number of calls given with -jit=N, or 0 if it is not a number.
+   */
+  private static int parseJitThreshold(String value){
+    try{
+      return Integer.parseInt(value);
+    }catch(NumberFormatException e){
+      return 0;
+    }
+  }
+
   private static void printHelp(){
     System.out.println("Usage: java P2 [OPTIONS] FILE");
     System.out.println("Without any switches, prints only the result of evaluating the program");
@@ -138,6 +224,17 @@ public class rpal20 {
     System.out.println("        of evaluating the program");
     System.out.println("        with -noout, prints only the standardized syntax tree generated");
     System.out.println("    -l: prints the source code listing");
+    System.out.println("-pratt: parses operator expressions by precedence climbing instead of");
+    System.out.println("        recursive descent (the resulting tree is the same)");
+    System.out.println("-compact: stores the syntax tree in flat arrays instead of node objects");
+    System.out.println("   -vm: evaluates the program by compiling it to bytecode and running that,");
+    System.out.println("        instead of with the CSE machine (the output is the same)");
+    System.out.println("-jit[=N]: like -vm, but compiles each function to JVM bytecode once it has");
+    System.out.println("        been called N times (default 100)");
+    System.out.println("-nodes: evaluates the program as a tree of nodes that specialize themselves to");
+    System.out.println("        the values they are given (the output is the same)");
+    System.out.println("-cache[=DIR]: keeps standardized trees in DIR (default .rpalcache) and reuses");
+    System.out.println("        them while the program source is unchanged");
   }
 
 }